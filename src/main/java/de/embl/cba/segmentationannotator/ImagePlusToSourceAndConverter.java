@@ -1,6 +1,7 @@
 package de.embl.cba.segmentationannotator;
 
 import bdv.viewer.SourceAndConverter;
+import de.embl.cba.segmentationannotator.label.LabelPyramidSource;
 import ij.ImagePlus;
 import sc.fiji.bdvpg.sourceandconverter.importer.SourceAndConverterFromSpimDataCreator;
 import spimdata.imageplus.SpimDataFromImagePlusGetter;
@@ -13,7 +14,8 @@ public class ImagePlusToSourceAndConverter
 	{
 		final SpimDataFromImagePlusGetter getter = new SpimDataFromImagePlusGetter();
 
-		final SourceAndConverter labelSourceAndConverter = new SourceAndConverterFromSpimDataCreator( getter.apply( labelImagePlus ) ).getSetupIdToSourceAndConverter().get( 0 );
+		final SourceAndConverter fullResolutionSourceAndConverter = new SourceAndConverterFromSpimDataCreator( getter.apply( labelImagePlus ) ).getSetupIdToSourceAndConverter().get( 0 );
+		final SourceAndConverter labelSourceAndConverter = LabelPyramidSource.asPyramidSourceAndConverter( fullResolutionSourceAndConverter, LabelPyramidSource.Downsampling.Mode );
 
 		final SourceMetadata labelSourceMetadata = new SourceMetadata();
 		labelSourceMetadata.isLabelSource = true;
@@ -32,28 +32,37 @@ import bdv.tools.brightness.ConverterSetup;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
+import bdv.util.BdvOverlaySource;
 import bdv.util.BdvStackSource;
 import bdv.viewer.DisplayMode;
 import bdv.viewer.*;
 import de.embl.cba.bdv.utils.BdvUtils;
 import de.embl.cba.bdv.utils.popup.BdvPopupMenus;
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
+import de.embl.cba.segmentationannotator.bdv.RenderMetricsOverlay;
 import de.embl.cba.segmentationannotator.bdv.SourcesAtMousePositionSupplier;
 import de.embl.cba.segmentationannotator.converter.LabelConverter;
 import de.embl.cba.segmentationannotator.converter.SegmentsConverter;
+import de.embl.cba.segmentationannotator.label.BoundaryMode;
+import de.embl.cba.segmentationannotator.label.LabelAdjacencyGraph;
 import de.embl.cba.segmentationannotator.label.LabelMaskDisplayDialog;
 import de.embl.cba.segmentationannotator.volume.VolumeViewConfigurationDialog;
 import de.embl.cba.segmentationannotator.label.LabelSource;
+import de.embl.cba.segmentationannotator.label.SegmentFilter;
+import de.embl.cba.segmentationannotator.label.SegmentIndex;
+import de.embl.cba.segmentationannotator.label.SelectedLabels;
 import de.embl.cba.segmentationannotator.volume.SegmentsVolumeView;
+import de.embl.cba.tables.Logger;
 import de.embl.cba.tables.color.CategoryColoringModel;
 import de.embl.cba.tables.color.ColoringModel;
 import de.embl.cba.tables.color.SelectionColoringModel;
 import de.embl.cba.tables.imagesegment.ImageSegment;
-import de.embl.cba.tables.imagesegment.LabelFrameAndImage;
-import de.embl.cba.tables.imagesegment.SegmentUtils;
 import de.embl.cba.tables.select.SelectionListener;
 import de.embl.cba.tables.select.SelectionModel;
+import de.embl.cba.tables.tablerow.TableRow;
 import de.embl.cba.tables.tablerow.TableRowImageSegment;
 import ij.gui.GenericDialog;
+import ij.util.Tools;
 import net.imglib2.RealPoint;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
@@ -98,7 +107,9 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 	private BdvHandle bdvHandle;
 	private String name;
 	private T recentFocus;
-	private HashMap< LabelFrameAndImage, T > labelFrameAndImageToSegment;
+	private SegmentIndex< T > segmentIndex;
+	private SelectedLabels< T > selectedLabels;
+	private SegmentFilter< T > segmentFilter;
 	private int segmentFocusAnimationDurationMillis = 750;
 	private boolean labelMasksShownAsBoundaries = false;
 	private Set< String > popupActionNames = new HashSet<>(  );
@@ -109,6 +120,9 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 	private SourceAndConverterService sacService;
 	private SourceAndConverter< R > primaryLabelSource;
 	private RealTransform segmentPositionTransform;
+	private List< SegmentsConverter< T > > segmentsConverters = new ArrayList<>();
+	private Map< String, Map< Integer, LabelAdjacencyGraph > > imageIdToFrameToAdjacency = new HashMap<>();
+	private BdvOverlaySource< RenderMetricsOverlay > renderMetricsOverlaySource;
 
 	public ImageView( final List< T > imageSegments, final SelectionColoringModel< T > selectionColoringModel, final Map< SourceAndConverter< R >, SourceMetadata > rawSourceToMetadata )
 	{
@@ -123,12 +137,7 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 
 	public void showImages()
 	{
-		int tMax = 0;
-		for ( T segments : labelFrameAndImageToSegment.values() )
-		{
-			if ( segments.timePoint() > tMax )
-				tMax = segments.timePoint();
-		}
+		int tMax = segmentIndex.getMaxTimePoint();
 
 		long zDimMax = 1;
 		for ( SourceAndConverter< R > sourceAndConverter : rawSourceToMetadata.keySet() )
@@ -161,6 +170,25 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 	public void setVolumeView( SegmentsVolumeView< TableRowImageSegment > volumeView )
 	{
 		this.volumeView = volumeView;
+		applySegmentFilter();
+	}
+
+	/**
+	 * Hides the segments that do not match the {@link SegmentFilter} in all views,
+	 * such that they can also not be selected there.
+	 */
+	private void applySegmentFilter()
+	{
+		final boolean isActive = segmentFilter.isActive();
+
+		if ( tableView != null )
+			tableView.setRowFilter( isActive ? row -> segmentFilter.isVisible( ( T ) row ) : null );
+
+		if ( volumeView != null )
+			volumeView.setSegmentFilter( isActive ? segment -> segmentFilter.isVisible( ( T ) segment ) : null );
+
+		if ( bdvHandle != null )
+			BdvUtils.repaint( bdvHandle );
 	}
 
 	private void createNewBdv( int numTimePoints )
@@ -226,11 +254,14 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 	private SourceAndConverter< R > asPrimaryLabelSource( SourceAndConverter< R > source, String labelImageId )
 	{
 		SegmentsConverter segmentsConverter = new SegmentsConverter(
-			labelFrameAndImageToSegment,
+			segmentIndex,
 			labelImageId,
-			selectionColoringModel );
+			selectionColoringModel,
+			selectedLabels,
+			segmentFilter );
 
 		bdvHandle.getViewerPanel().addTimePointListener( segmentsConverter );
+		segmentsConverters.add( segmentsConverter );
 
 		SourceAndConverter sourceAndConverter = LabelSource.asLabelSourceAndConverter( source, segmentsConverter );
 
@@ -304,7 +335,19 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 
 	private void  initSegments( List< T > segments )
 	{
-		labelFrameAndImageToSegment = SegmentUtils.createSegmentMap( segments );
+		segmentIndex = new SegmentIndex<>( segments );
+		Logger.info( "Segment index: " + segmentIndex.getMemoryReport() );
+		selectedLabels = new SelectedLabels<>( segmentIndex, selectionModel );
+		segmentFilter = new SegmentFilter<>( segmentIndex );
+		segmentFilter.addListener( () -> applySegmentFilter() );
+	}
+
+	/**
+	 * @return the filter that decides which segments are rendered, e.g. by conditions on table columns
+	 */
+	public SegmentFilter< T > getSegmentFilter()
+	{
+		return segmentFilter;
 	}
 
 	private void registerAsColoringListener( ColoringModel< T > coloringModel )
@@ -374,11 +417,14 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		actions.add( installUndoSegmentSelectionBehaviour() );
 		actions.add( installRandomColorShufflingBehaviour() );
 		actions.add( installSegmentSelectionBehaviour() );
+		actions.add( installNeighborSelectionBehaviour() );
 		actions.add( installConfigureSegmentsVolumeViewBehaviour() );
 		actions.add( installSelectionColoringModeBehaviour() );
 		actions.add( installStartNewAnnotationBehaviour() );
 		actions.add( installContinueAnnotationBehaviour() );
 		actions.add( installConfigureLabelMaskDisplayBehaviour() );
+		actions.add( installRenderMetricsBehaviour() );
+		actions.add( installFilterSegmentsBehaviour() );
 		//actions.add( installReportIssueBehaviour() );
 		//addMoveToPopupMenu();
 		//addAnimationSettingsPopupMenu();
@@ -507,6 +553,34 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		return actionName;
 	}
 
+	private String installRenderMetricsBehaviour()
+	{
+		final String actionName = "Show/Hide Render Metrics";
+
+		sacService.registerAction( actionName, sourceAndConverters -> { toggleRenderMetrics(); }  );
+
+		return actionName;
+	}
+
+	private synchronized void toggleRenderMetrics()
+	{
+		if ( renderMetricsOverlaySource == null )
+		{
+			RenderMetrics.reset();
+			RenderMetrics.setEnabled( true );
+			renderMetricsOverlaySource = BdvFunctions.showOverlay( new RenderMetricsOverlay(), "render metrics", BdvOptions.options().addTo( bdvHandle ) );
+		}
+		else
+		{
+			RenderMetrics.setEnabled( false );
+			Logger.info( "Render metrics since enabling: " + RenderMetrics.snapshot() );
+			renderMetricsOverlaySource.removeFromBdv();
+			renderMetricsOverlaySource = null;
+		}
+
+		BdvUtils.repaint( bdvHandle );
+	}
+
 //	private String installReportIssueBehaviour()
 //	{
 //		final String actionName = "Report an Issue...";
@@ -592,6 +666,7 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		if ( coloringModel instanceof CategoryColoringModel )
 		{
 			( ( CategoryColoringModel ) coloringModel ).incRandomSeed();
+			segmentsConverters.forEach( SegmentsConverter::updateColorTables );
 			BdvUtils.repaint( bdvHandle );
 		}
 	}
@@ -617,14 +692,15 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		dialog.showDialog();
 		final int boundaryThickness = dialog.getBoundaryThickness();
 		final boolean showAsBoundary = dialog.isShowAsBoundary();
+		final BoundaryMode boundaryMode = dialog.getBoundaryMode();
 
 		Set< SourceAndConverter< R > > labelSources = getLabelSources();
 		labelSources.forEach( source ->
 		{
 			if ( ! ( source.getSpimSource() instanceof LabelSource ) ) return;
 
-			(( LabelSource ) source.getSpimSource() ).showAsBoundary( showAsBoundary, boundaryThickness );
-			(( LabelSource ) source.asVolatile().getSpimSource() ).showAsBoundary( showAsBoundary, boundaryThickness );
+			(( LabelSource ) source.getSpimSource() ).showAsBoundary( showAsBoundary, boundaryThickness, boundaryMode );
+			(( LabelSource ) source.asVolatile().getSpimSource() ).showAsBoundary( showAsBoundary, boundaryThickness, boundaryMode );
 		});
 
 		labelMasksShownAsBoundaries = ! labelMasksShownAsBoundaries;
@@ -699,6 +775,51 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		toggleSegmentSelectionAndFocus( segment );
 	}
 
+	private String installNeighborSelectionBehaviour()
+	{
+		final String actionName = "Select Neighbouring Segments";
+		sacService.registerAction( actionName, sourceAndConverters -> { new Thread( () -> selectNeighborsAtMousePosition() ).start(); } );
+		return actionName;
+	}
+
+	private synchronized void selectNeighborsAtMousePosition()
+	{
+		final T segment = getSegmentAtMouseCoordinates();
+
+		if ( segment == null ) return;
+
+		final Map< Integer, LabelAdjacencyGraph > frameToAdjacency = imageIdToFrameToAdjacency.get( segment.imageId() );
+		if ( frameToAdjacency == null || ! frameToAdjacency.containsKey( segment.timePoint() ) )
+		{
+			Logger.info( "The neighbours of the segments in " + segment.imageId() + " have not been computed." );
+			return;
+		}
+
+		// selects all segments with one selection event
+		final List< T > segments = new ArrayList<>();
+		segments.add( segment );
+		final int[] neighbors = frameToAdjacency.get( segment.timePoint() ).getNeighbors( ( int ) segment.labelId() );
+		for ( int neighbor : neighbors )
+		{
+			final T neighborSegment = segmentIndex.get( segment.imageId(), segment.timePoint(), neighbor );
+			if ( neighborSegment != null )
+				segments.add( neighborSegment );
+		}
+
+		selectionModel.setSelected( segments, true );
+	}
+
+	/**
+	 * Enables the selection of touching segments.
+	 *
+	 * @param frameToAdjacency
+	 *            the adjacency graphs of the label image, per zero-based frame
+	 */
+	public void setLabelAdjacency( String labelImageId, Map< Integer, LabelAdjacencyGraph > frameToAdjacency )
+	{
+		imageIdToFrameToAdjacency.put( labelImageId, frameToAdjacency );
+	}
+
 	private void toggleSegmentSelectionAndFocus( T segment )
 	{
 		selectionModel.toggle( segment );
@@ -745,9 +866,9 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 
 				final String labelImageId = sourceToMetadata.get( source ).imageId;
 
-				final LabelFrameAndImage labelFrameAndImage = new LabelFrameAndImage( labelIndex, currentTimepoint, labelImageId );
+				final T segment = segmentIndex.get( labelImageId, currentTimepoint, labelIndex.intValue() );
 
-				final T segment = labelFrameAndImageToSegment.get( labelFrameAndImage );
+				if ( segment != null && ! segmentFilter.isVisible( segment ) ) return null;
 
 				return segment;
 			}
@@ -756,6 +877,70 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 		return null;
 	}
 
+	private String installFilterSegmentsBehaviour()
+	{
+		final String actionName = "Filter Segments...";
+		sacService.registerAction( actionName, sourceAndConverters -> {
+			new Thread( () -> filterSegmentsDialog() ).start();
+		} );
+		return actionName;
+	}
+
+	/**
+	 * Sets or removes the condition of one table column;
+	 * the conditions of the other columns are kept.
+	 */
+	private void filterSegmentsDialog()
+	{
+		final T segment = getAnySegment();
+		if ( ! ( segment instanceof TableRow ) )
+		{
+			Logger.info( "Filter Segments: the segments have no table columns." );
+			return;
+		}
+
+		final String[] columnNames = ( ( TableRow ) segment ).getColumnNames().toArray( new String[ 0 ] );
+		final String[] modes = { "Range", "Text", "Remove" };
+
+		final GenericDialog genericDialog = new GenericDialog( "Filter Segments" );
+		genericDialog.addChoice( "Column", columnNames, columnNames[ 0 ] );
+		genericDialog.addChoice( "Condition", modes, modes[ 0 ] );
+		// empty bounds are unbounded
+		genericDialog.addStringField( "Minimum", "" );
+		genericDialog.addStringField( "Maximum", "" );
+		genericDialog.addStringField( "Text", "" );
+		genericDialog.addCheckbox( "Remove all other column filters", false );
+		genericDialog.showDialog();
+		if ( genericDialog.wasCanceled() ) return;
+
+		final String columnName = genericDialog.getNextChoice();
+		final String mode = genericDialog.getNextChoice();
+		final double min = Tools.parseDouble( genericDialog.getNextString().trim(), Double.NaN );
+		final double max = Tools.parseDouble( genericDialog.getNextString().trim(), Double.NaN );
+		final String text = genericDialog.getNextString();
+
+		if ( genericDialog.getNextBoolean() )
+			segmentFilter.removeAllConditions();
+
+		if ( mode.equals( "Range" ) )
+			segmentFilter.setCondition( columnName, SegmentFilter.numericColumnCondition( columnName, min, max ) );
+		else if ( mode.equals( "Text" ) )
+			segmentFilter.setCondition( columnName, SegmentFilter.textColumnCondition( columnName, text ) );
+		else
+			segmentFilter.removeCondition( columnName );
+
+		Logger.info( "Filter Segments: " + segmentFilter.getNumVisible() + " of " + segmentIndex.size() + " segments are shown." );
+	}
+
+	private T getAnySegment()
+	{
+		for ( int imageIndex = 0; imageIndex < segmentIndex.getNumImages(); imageIndex++ )
+			for ( int frame = 0; frame < segmentIndex.getNumFrames( imageIndex ); frame++ )
+				if ( segmentIndex.getFrameSegments( imageIndex, frame ).size() > 0 )
+					return segmentIndex.getFrameSegments( imageIndex, frame ).getSegments().get( 0 );
+		return null;
+	}
+
 	private String installSelectionColoringModeBehaviour( )
 	{
 		final String actionName = "Adjust Unselected Segments Brightness";
@@ -779,6 +964,7 @@ public class ImageView< T extends ImageSegment, R extends NumericType< R > & Rea
 	public void setTableView( TableView< TableRowImageSegment > tableView )
 	{
 		this.tableView = tableView;
+		applySegmentFilter();
 	}
 
 	public void setSegmentPositionTransform( RealTransform transform )
@@ -13,7 +13,7 @@ import java.util.Map;
 
 public class SourcesAndSegmentsViewer
 {
-	public static void view( Map< SourceAndConverter< ? >, SourceMetadata > sources, List< TableRowImageSegment > tableRowImageSegments, boolean is2D, int nFrames )
+	public static ImageView< ?, ? > view( Map< SourceAndConverter< ? >, SourceMetadata > sources, List< TableRowImageSegment > tableRowImageSegments, boolean is2D, int nFrames )
 	{
 		// create selection and coloring models
 		DefaultSelectionModel< TableRowImageSegment > selectionModel = new DefaultSelectionModel<>();
@@ -34,5 +34,7 @@ public class SourcesAndSegmentsViewer
 		selectionModel.listeners().add( volumeView );
 		selectionColoringModel.listeners().add( volumeView );
 		imagesView.setVolumeView( volumeView );
+
+		return imagesView;
 	}
 }
@@ -64,6 +64,7 @@ import weka.classifiers.Classifier;
 import javax.swing.*;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableModel;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -73,6 +74,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import static de.embl.cba.tables.color.CategoryTableRowColumnColoringModel.DARK_GREY;
 
@@ -706,6 +708,26 @@ public class TableView< T extends TableRow > extends JPanel
 		return tableRowsModel.getColumnNames();
 	}
 
+	/**
+	 * @param isVisible
+	 *            the rows that are shown, or null to show all rows
+	 */
+	public void setRowFilter( Predicate< T > isVisible )
+	{
+		if ( jTable == null ) return;
+
+		final RowFilter< TableModel, Integer > rowFilter = isVisible == null ? null : new RowFilter< TableModel, Integer >()
+		{
+			@Override
+			public boolean include( Entry< ? extends TableModel, ? extends Integer > entry )
+			{
+				return isVisible.test( tableRowsModel.getRow( entry.getIdentifier() ) );
+			}
+		};
+
+		SwingUtilities.invokeLater( () -> ( ( TableRowSorter< TableModel > ) jTable.getRowSorter() ).setRowFilter( rowFilter ) );
+	}
+
 	public JTable getjTable()
 	{
 		return jTable;
@@ -800,6 +822,9 @@ public class TableView< T extends TableRow > extends JPanel
 	{
 		final int rowInView = jTable.convertRowIndexToView( tableRowsModel.indexOf( selection ) );
 
+		// the row is filtered out
+		if ( rowInView < 0 ) return;
+
 		if ( rowInView == recentlySelectedRowInView ) return;
 
 		moveToRowInView( rowInView );
@@ -0,0 +1,179 @@
+package de.embl.cba.segmentationannotator.bdv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work done while BDV renders label images,
+ * to find out whether slow redraws are caused by loading, boundary computation or coloring.
+ * <p>
+ * The counters are updated from all render threads. They are only updated
+ * while the metrics are enabled, such that the disabled metrics cost
+ * one volatile read per voxel.
+ */
+public class RenderMetrics
+{
+	private static volatile boolean enabled = false;
+
+	private static final LongAdder convertedVoxels = new LongAdder();
+	private static final LongAdder invalidVolatileVoxels = new LongAdder();
+	private static final LongAdder fallbackVoxels = new LongAdder();
+	private static final LongAdder colorTableHits = new LongAdder();
+	private static final LongAdder colorTableMisses = new LongAdder();
+	private static final LongAdder colorTableNanos = new LongAdder();
+	private static final LongAdder sourceRequests = new LongAdder();
+	private static final LongAdder boundaryVoxels = new LongAdder();
+	private static final LongAdder boundaryNanos = new LongAdder();
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public static void setEnabled( boolean enabled )
+	{
+		RenderMetrics.enabled = enabled;
+	}
+
+	public static void reset()
+	{
+		convertedVoxels.reset();
+		invalidVolatileVoxels.reset();
+		fallbackVoxels.reset();
+		colorTableHits.reset();
+		colorTableMisses.reset();
+		colorTableNanos.reset();
+		sourceRequests.reset();
+		boundaryVoxels.reset();
+		boundaryNanos.reset();
+	}
+
+	public static void countConvertedVoxel()
+	{
+		if ( enabled ) convertedVoxels.increment();
+	}
+
+	public static void countInvalidVolatileVoxel()
+	{
+		if ( enabled ) invalidVolatileVoxels.increment();
+	}
+
+	/**
+	 * Counts a voxel that is not loaded yet, and whose label is therefore read from a coarser
+	 * resolution level by the boundary computation, see VolatileFallbackRandomAccessibleInterval.
+	 */
+	public static void countFallbackVoxel()
+	{
+		if ( enabled ) fallbackVoxels.increment();
+	}
+
+	public static void countColorTableHit()
+	{
+		if ( enabled ) colorTableHits.increment();
+	}
+
+	/**
+	 * @param nanos
+	 *            the time it took to compute the missing color table
+	 */
+	public static void countColorTableMiss( long nanos )
+	{
+		if ( ! enabled ) return;
+		colorTableMisses.increment();
+		colorTableNanos.add( nanos );
+	}
+
+	public static void countSourceRequest()
+	{
+		if ( enabled ) sourceRequests.increment();
+	}
+
+	/**
+	 * @param nanos
+	 *            the time it took to compute the boundary value of one voxel from its neighborhood
+	 */
+	public static void countBoundaryVoxel( long nanos )
+	{
+		if ( ! enabled ) return;
+		boundaryVoxels.increment();
+		boundaryNanos.add( nanos );
+	}
+
+	/**
+	 * @return the current values of all counters; the counters that are updated
+	 *         concurrently may be slightly inconsistent with each other
+	 */
+	public static Snapshot snapshot()
+	{
+		final Snapshot snapshot = new Snapshot();
+		snapshot.timeNanos = System.nanoTime();
+		snapshot.convertedVoxels = convertedVoxels.sum();
+		snapshot.invalidVolatileVoxels = invalidVolatileVoxels.sum();
+		snapshot.fallbackVoxels = fallbackVoxels.sum();
+		snapshot.colorTableHits = colorTableHits.sum();
+		snapshot.colorTableMisses = colorTableMisses.sum();
+		snapshot.colorTableNanos = colorTableNanos.sum();
+		snapshot.sourceRequests = sourceRequests.sum();
+		snapshot.boundaryVoxels = boundaryVoxels.sum();
+		snapshot.boundaryNanos = boundaryNanos.sum();
+		return snapshot;
+	}
+
+	public static class Snapshot
+	{
+		public long timeNanos;
+		public long convertedVoxels;
+		public long invalidVolatileVoxels;
+		public long fallbackVoxels;
+		public long colorTableHits;
+		public long colorTableMisses;
+		public long colorTableNanos;
+		public long sourceRequests;
+		public long boundaryVoxels;
+		public long boundaryNanos;
+
+		/**
+		 * @return the work done between the earlier snapshot and this one
+		 */
+		public Snapshot minus( Snapshot earlier )
+		{
+			final Snapshot delta = new Snapshot();
+			delta.timeNanos = timeNanos - earlier.timeNanos;
+			delta.convertedVoxels = convertedVoxels - earlier.convertedVoxels;
+			delta.invalidVolatileVoxels = invalidVolatileVoxels - earlier.invalidVolatileVoxels;
+			delta.fallbackVoxels = fallbackVoxels - earlier.fallbackVoxels;
+			delta.colorTableHits = colorTableHits - earlier.colorTableHits;
+			delta.colorTableMisses = colorTableMisses - earlier.colorTableMisses;
+			delta.colorTableNanos = colorTableNanos - earlier.colorTableNanos;
+			delta.sourceRequests = sourceRequests - earlier.sourceRequests;
+			delta.boundaryVoxels = boundaryVoxels - earlier.boundaryVoxels;
+			delta.boundaryNanos = boundaryNanos - earlier.boundaryNanos;
+			return delta;
+		}
+
+		/**
+		 * @return one line per metric, for logging or display
+		 */
+		public String[] toLines()
+		{
+			return new String[]{
+					String.format( "Converted voxels: %,d", convertedVoxels ),
+					String.format( "Invalid volatile voxels: %,d (%.1f%%)", invalidVolatileVoxels, percentage( invalidVolatileVoxels, convertedVoxels ) ),
+					String.format( "Boundary voxels read from coarser levels: %,d", fallbackVoxels ),
+					String.format( "Color tables: %d hits, %d misses, %.1f ms", colorTableHits, colorTableMisses, colorTableNanos / 1.0E6 ),
+					String.format( "Source requests: %d", sourceRequests ),
+					String.format( "Boundary voxels: %,d, %.1f ms summed over threads", boundaryVoxels, boundaryNanos / 1.0E6 )
+			};
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.join( "; ", toLines() );
+		}
+
+		private static double percentage( long part, long total )
+		{
+			return total == 0 ? 0 : 100.0 * part / total;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package de.embl.cba.segmentationannotator.bdv;
+
+import bdv.util.BdvOverlay;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+
+/**
+ * Shows the {@link RenderMetrics} of the work that has been done since the previous
+ * repaint of the viewer, i.e. the cost of rendering the current frame.
+ */
+public class RenderMetricsOverlay extends BdvOverlay
+{
+	private static final int LINE_HEIGHT = 14;
+
+	private RenderMetrics.Snapshot previous = RenderMetrics.snapshot();
+
+	@Override
+	protected synchronized void draw( Graphics2D g )
+	{
+		final RenderMetrics.Snapshot current = RenderMetrics.snapshot();
+		final RenderMetrics.Snapshot delta = current.minus( previous );
+		previous = current;
+
+		g.setFont( new Font( Font.MONOSPACED, Font.PLAIN, 12 ) );
+		g.setColor( Color.WHITE );
+
+		int y = 2 * LINE_HEIGHT;
+		g.drawString( String.format( "Since last repaint (%.1f ms):", delta.timeNanos / 1.0E6 ), 10, y );
+		for ( String line : delta.toLines() )
+		{
+			y += LINE_HEIGHT;
+			g.drawString( line, 10, y );
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package de.embl.cba.segmentationannotator.command;
+
+import de.embl.cba.segmentationannotator.label.FeatureComputationJob;
+import ij.IJ;
+
+/**
+ * Shows the progress of a {@link FeatureComputationJob} in the ImageJ status and progress bar,
+ * and cancels the job if the user presses Escape.
+ */
+public class ImageJProgressListener implements FeatureComputationJob.ProgressListener
+{
+	public ImageJProgressListener()
+	{
+		IJ.resetEscape();
+	}
+
+	@Override
+	public void progress( FeatureComputationJob job )
+	{
+		if ( IJ.escapePressed() )
+			job.cancel();
+
+		if ( job.isFinished() )
+		{
+			IJ.showProgress( 1.0 );
+			IJ.showStatus( job.getSummary() );
+		}
+		else
+		{
+			IJ.showProgress( job.getProgress() );
+			IJ.showStatus( job.getSummary() + " (press Esc to cancel)" );
+		}
+	}
+}
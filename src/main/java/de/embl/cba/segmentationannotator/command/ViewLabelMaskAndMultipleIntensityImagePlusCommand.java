@@ -1,15 +1,28 @@
 package de.embl.cba.segmentationannotator.command;
 
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import de.embl.cba.segmentationannotator.ImagePlusToSourceAndConverter;
+import de.embl.cba.segmentationannotator.ImageView;
 import de.embl.cba.segmentationannotator.SourceMetadata;
 import de.embl.cba.segmentationannotator.SourcesAndSegmentsViewer;
+import de.embl.cba.segmentationannotator.label.FeatureComputationJob;
+import de.embl.cba.segmentationannotator.label.LabelAdjacencyAnalyzer;
+import de.embl.cba.segmentationannotator.label.LabelAdjacencyGraph;
 import de.embl.cba.segmentationannotator.label.LabelAnalyzer;
 import de.embl.cba.segmentationannotator.label.SegmentFeatures;
+import de.embl.cba.segmentationannotator.label.SegmentFeaturesCache;
+import de.embl.cba.segmentationannotator.label.ShapeAnalyzer;
+import de.embl.cba.segmentationannotator.label.ShapeFeatures;
+import de.embl.cba.segmentationannotator.label.SourceLabelAnalyzer;
+import de.embl.cba.segmentationannotator.label.TextureAnalyzer;
+import de.embl.cba.segmentationannotator.label.TextureFeatures;
+import de.embl.cba.tables.Logger;
 import de.embl.cba.tables.imagesegment.SegmentProperty;
 import de.embl.cba.tables.imagesegment.SegmentUtils;
 import de.embl.cba.tables.tablerow.TableRowImageSegment;
 import ij.ImagePlus;
+import net.imglib2.type.numeric.RealType;
 import org.jetbrains.annotations.NotNull;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
@@ -20,6 +33,14 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MAX_X;
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MAX_Y;
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MAX_Z;
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MIN_X;
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MIN_Y;
+import static de.embl.cba.tables.imagesegment.SegmentUtils.BB_MIN_Z;
 
 @Plugin(type = Command.class, menuPath = "Plugins > Segmentation > Annotator > View Label Mask and Intensity Images..." )
 public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Command
@@ -27,11 +48,35 @@ public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Comman
 	public static final String X = "mean_x";
 	public static final String Y = "mean_y";
 	public static final String Z = "mean_z";
+	public static final String T = "timepoint";
 	public static final String NAME = "image_name";
 	public static final String N_PIXELS = "n_pixels";
 	public static final String MEAN_INTENSITY = "mean_intensity";
+	public static final String SUM_INTENSITY = "sum_intensity";
+	public static final String MIN_INTENSITY = "min_intensity";
+	public static final String MAX_INTENSITY = "max_intensity";
+	public static final String VARIANCE_INTENSITY = "variance_intensity";
+	public static final String MEDIAN_INTENSITY = "median_intensity";
+	public static final String P95_INTENSITY = "p95_intensity";
 	public static final String VOLUME = "volume";
 	public static final String INDEX = "label_index";
+	public static final String MAJOR_AXIS = "major_axis";
+	public static final String MEDIUM_AXIS = "medium_axis";
+	public static final String MINOR_AXIS = "minor_axis";
+	public static final String MAJOR_AXIS_X = "major_axis_x";
+	public static final String MAJOR_AXIS_Y = "major_axis_y";
+	public static final String MAJOR_AXIS_Z = "major_axis_z";
+	public static final String ELONGATION = "elongation";
+	public static final String FLATNESS = "flatness";
+	public static final String SURFACE_AREA = "surface_area";
+	public static final String SPHERICITY = "sphericity";
+	public static final String GLCM_CONTRAST = "glcm_contrast";
+	public static final String GLCM_CORRELATION = "glcm_correlation";
+	public static final String GLCM_ENERGY = "glcm_energy";
+	public static final String GLCM_HOMOGENEITY = "glcm_homogeneity";
+	public static final String GLCM_ENTROPY = "glcm_entropy";
+	public static final String NUM_NEIGHBORS = "num_neighbors";
+	public static final String SHARED_BOUNDARY = "shared_boundary";
 
 	// autoFill = false is necessary, because pre-processors otherwise prevent the rendering of the UI element
 	@Parameter( label = "Label Mask Image", persist = false, autoFill = false )
@@ -41,6 +86,18 @@ public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Comman
 	@Parameter( label = "Intensity Image", persist = false, autoFill = false )
 	public ImagePlus[] intensityImages;
 
+	@Parameter( label = "Compute Intensity Percentiles (Median, 95th)" )
+	public boolean computeIntensityQuantiles = false;
+
+	@Parameter( label = "Compute Shape Features" )
+	public boolean computeShapeFeatures = false;
+
+	@Parameter( label = "Compute Texture Features" )
+	public boolean computeTextureFeatures = false;
+
+	@Parameter( label = "Compute Neighbours" )
+	public boolean computeNeighbors = false;
+
 	@Override
 	public void run()
 	{
@@ -48,33 +105,108 @@ public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Comman
 		for ( ImagePlus intensityImage : intensityImages )
 			intensityImageList.add( intensityImage );
 
-		showImages( labelImage, intensityImageList );
+		showImages( labelImage, intensityImageList, computeIntensityQuantiles, computeShapeFeatures, computeTextureFeatures, computeNeighbors );
 	}
 
 	public static void showImages( ImagePlus labelImage, ArrayList< ImagePlus > intensityImages )
+	{
+		showImages( labelImage, intensityImages, false, false, false, false );
+	}
+
+	public static void showImages( ImagePlus labelImage, ArrayList< ImagePlus > intensityImages, boolean computeIntensityQuantiles, boolean computeShapeFeatures, boolean computeTextureFeatures, boolean computeNeighbors )
 	{
 		Map< SourceAndConverter< ? >, SourceMetadata > sources = new HashMap<>();
 
 		final String labelImageId = ImagePlusToSourceAndConverter.addPrimaryLabelSource( sources, labelImage );
 
+		final Map< ImagePlus, String > intensityImageToId = new HashMap<>();
 		for ( ImagePlus intensityImage : intensityImages )
 		{
-			ImagePlusToSourceAndConverter.addIntensitySource( sources, intensityImage );
+			intensityImageToId.put( intensityImage, ImagePlusToSourceAndConverter.addIntensitySource( sources, intensityImage ) );
+		}
+
+		// intensity features can only be measured in images of the same size as the label image
+		final List< ImagePlus > measuredIntensityImages = new ArrayList<>();
+		final List< String > intensityNames = new ArrayList<>();
+		for ( ImagePlus intensityImage : intensityImages )
+		{
+			if ( LabelAnalyzer.hasSameDimensions( labelImage, intensityImage ) )
+			{
+				measuredIntensityImages.add( intensityImage );
+				intensityNames.add( intensityImage.getTitle() );
+			}
+			else
+			{
+				Logger.info( "Intensity features are not computed for " + intensityImage.getTitle() + ", because its dimensions differ from the label image." );
+			}
+		}
+
+		// the shape analyzer reads whole slices, which would decode the virtual stack again
+		if ( labelImage.getStack().isVirtual() && computeShapeFeatures )
+		{
+			Logger.info( "Shape features are not computed for " + labelImage.getTitle() + ", because it is a virtual stack." );
+			computeShapeFeatures = false;
 		}
 
-		// create labels and features
-		final Map< Integer, SegmentFeatures > labelToFeatures = LabelAnalyzer.analyzeLabels( labelImage.getImageStack(), labelImage.getCalibration() );
-		Map< String, List< String > > segmentFeatureColumns = createColumns( labelToFeatures, labelImageId );
-		Map< SegmentProperty, List< String > > segmentPropertyToColumnName = getSegmentPropertyToColumnName( segmentFeatureColumns );
+		// create labels and features, or load them from the cache
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final ImageJProgressListener progressListener = new ImageJProgressListener();
+		final Map< Integer, Map< Integer, SegmentFeatures > > frameToLabelToFeatures;
+		final Map< String, List< String > > segmentFeatureColumns;
+		Map< Integer, LabelAdjacencyGraph > frameToAdjacency = null;
+		try
+		{
+			final FeatureComputationJob job = createJob( "Label analysis of " + labelImage.getTitle(), progressListener );
+			if ( labelImage.getStack().isVirtual() )
+				frameToLabelToFeatures = analyzeLabelSource( sources, labelImageId, measuredIntensityImages, intensityImageToId, labelImage.getNFrames(), computeIntensityQuantiles, job );
+			else
+				frameToLabelToFeatures = SegmentFeaturesCache.analyzeLabels( labelImage, measuredIntensityImages.toArray( new ImagePlus[ 0 ] ), computeIntensityQuantiles, job );
+
+			segmentFeatureColumns = createColumns( frameToLabelToFeatures, labelImageId, intensityNames, computeIntensityQuantiles );
+			if ( computeShapeFeatures )
+			{
+				final FeatureComputationJob shapeJob = createJob( "Shape analysis of " + labelImage.getTitle(), progressListener );
+				final Map< Integer, Map< Integer, ShapeFeatures > > frameToLabelToShape = ShapeAnalyzer.analyzeShapes( labelImage, numThreads, shapeJob );
+				addShapeColumns( segmentFeatureColumns, frameToLabelToFeatures, frameToLabelToShape );
+			}
+			if ( computeTextureFeatures )
+			{
+				final Source< ? extends RealType< ? > > labelSource = getSource( sources, labelImageId, true );
+				final List< Source< ? extends RealType< ? > > > intensitySources = new ArrayList<>();
+				for ( ImagePlus intensityImage : measuredIntensityImages )
+					intensitySources.add( getSource( sources, intensityImageToId.get( intensityImage ), false ) );
+
+				final FeatureComputationJob textureJob = createJob( "Texture analysis of " + labelImage.getTitle(), progressListener );
+				final Map< Integer, Map< Integer, TextureFeatures > > frameToLabelToTexture = TextureAnalyzer.analyzeFrames( labelSource, intensitySources, frameToLabelToFeatures, numThreads, textureJob );
+				addTextureColumns( segmentFeatureColumns, frameToLabelToFeatures, frameToLabelToTexture, intensityNames );
+			}
+			if ( computeNeighbors )
+			{
+				final FeatureComputationJob adjacencyJob = createJob( "Adjacency analysis of " + labelImage.getTitle(), progressListener );
+				if ( labelImage.getStack().isVirtual() )
+					frameToAdjacency = LabelAdjacencyAnalyzer.analyzeFrames( getSource( sources, labelImageId, true ), labelImage.getNFrames(), numThreads, adjacencyJob );
+				else
+					frameToAdjacency = LabelAdjacencyAnalyzer.analyzeAdjacency( labelImage, numThreads, adjacencyJob );
+				addNeighborColumns( segmentFeatureColumns, frameToLabelToFeatures, frameToAdjacency );
+			}
+		}
+		catch ( CancellationException e )
+		{
+			Logger.info( e.getMessage() );
+			return;
+		}
+		Map< SegmentProperty, List< String > > segmentPropertyToColumnName = getSegmentPropertyToColumnName( segmentFeatureColumns, labelImage.getNSlices() > 1 );
 
 		// create feature table
-		final List< TableRowImageSegment > tableRowImageSegments = SegmentUtils.tableRowImageSegmentsFromColumns( segmentFeatureColumns, segmentPropertyToColumnName, true );
+		final List< TableRowImageSegment > tableRowImageSegments = SegmentUtils.tableRowImageSegmentsFromColumns( segmentFeatureColumns, segmentPropertyToColumnName, false );
 
-		SourcesAndSegmentsViewer.view( sources, tableRowImageSegments, labelImage.getNSlices() == 1, labelImage.getNFrames() );
+		final ImageView< ?, ? > imageView = SourcesAndSegmentsViewer.view( sources, tableRowImageSegments, labelImage.getNSlices() == 1, labelImage.getNFrames() );
+		if ( frameToAdjacency != null )
+			imageView.setLabelAdjacency( labelImageId, frameToAdjacency );
 	}
 
 	@NotNull
-	private static Map< SegmentProperty, List< String > > getSegmentPropertyToColumnName( Map< String, List< String > > columnNameToColumnEntries )
+	private static Map< SegmentProperty, List< String > > getSegmentPropertyToColumnName( Map< String, List< String > > columnNameToColumnEntries, boolean is3D )
 	{
 		Map< SegmentProperty, List< String > > segmentPropertyToColumnName = new HashMap<>();
 		segmentPropertyToColumnName.put( SegmentProperty.LabelImage, columnNameToColumnEntries.get( NAME ) );
@@ -82,11 +214,17 @@ public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Comman
 		segmentPropertyToColumnName.put( SegmentProperty.X, columnNameToColumnEntries.get( X ) );
 		segmentPropertyToColumnName.put( SegmentProperty.Y, columnNameToColumnEntries.get( Y ) );
 		segmentPropertyToColumnName.put( SegmentProperty.Z, columnNameToColumnEntries.get( Z ) );
+		segmentPropertyToColumnName.put( SegmentProperty.T, columnNameToColumnEntries.get( T ) );
+		if ( is3D )
+		{
+			// avoids flood filling the segments in the 3D view
+			SegmentUtils.putDefaultBoundingBoxMapping( segmentPropertyToColumnName, columnNameToColumnEntries );
+		}
 		return segmentPropertyToColumnName;
 	}
 
 	@NotNull
-	private static Map< String, List< String > > createColumns( Map< Integer, SegmentFeatures > indexToFeatures, String labelImageName )
+	private static Map< String, List< String > > createColumns( Map< Integer, Map< Integer, SegmentFeatures > > frameToIndexToFeatures, String labelImageName, List< String > intensityNames, boolean addQuantiles )
 	{
 		Map< String, List< String > > columnNameToColumnEntries = new LinkedHashMap<>();
 		columnNameToColumnEntries.put( INDEX, new ArrayList< String >() );
@@ -94,20 +232,180 @@ public class ViewLabelMaskAndMultipleIntensityImagePlusCommand implements Comman
 		columnNameToColumnEntries.put( X, new ArrayList< String >() );
 		columnNameToColumnEntries.put( Y, new ArrayList< String >() );
 		columnNameToColumnEntries.put( Z, new ArrayList< String >() );
+		columnNameToColumnEntries.put( T, new ArrayList< String >() );
 		columnNameToColumnEntries.put( N_PIXELS, new ArrayList< String >() );
 		columnNameToColumnEntries.put( VOLUME, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MIN_X, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MIN_Y, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MIN_Z, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MAX_X, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MAX_Y, new ArrayList< String >() );
+		columnNameToColumnEntries.put( BB_MAX_Z, new ArrayList< String >() );
+		for ( String intensityName : intensityNames )
+		{
+			columnNameToColumnEntries.put( getIntensityColumnName( MEAN_INTENSITY, intensityName ), new ArrayList< String >() );
+			columnNameToColumnEntries.put( getIntensityColumnName( SUM_INTENSITY, intensityName ), new ArrayList< String >() );
+			columnNameToColumnEntries.put( getIntensityColumnName( MIN_INTENSITY, intensityName ), new ArrayList< String >() );
+			columnNameToColumnEntries.put( getIntensityColumnName( MAX_INTENSITY, intensityName ), new ArrayList< String >() );
+			columnNameToColumnEntries.put( getIntensityColumnName( VARIANCE_INTENSITY, intensityName ), new ArrayList< String >() );
+			if ( addQuantiles )
+			{
+				columnNameToColumnEntries.put( getIntensityColumnName( MEDIAN_INTENSITY, intensityName ), new ArrayList< String >() );
+				columnNameToColumnEntries.put( getIntensityColumnName( P95_INTENSITY, intensityName ), new ArrayList< String >() );
+			}
+		}
 
-		for ( Integer labelIndex : indexToFeatures.keySet() )
+		for ( Integer frame : frameToIndexToFeatures.keySet() )
 		{
-			final SegmentFeatures features = indexToFeatures.get( labelIndex );
-			columnNameToColumnEntries.get( INDEX ).add( String.valueOf( labelIndex ) );
-			columnNameToColumnEntries.get( NAME ).add( labelImageName );
-			columnNameToColumnEntries.get( X ).add( String.valueOf( features.anchorX ) );
-			columnNameToColumnEntries.get( Y ).add( String.valueOf( features.anchorY ) );
-			columnNameToColumnEntries.get( Z ).add( String.valueOf( features.anchorZ ) );
-			columnNameToColumnEntries.get( N_PIXELS ).add( String.valueOf( features.numPixels ) );
-			columnNameToColumnEntries.get( VOLUME ).add( String.valueOf( features.volume ) );
+			final Map< Integer, SegmentFeatures > indexToFeatures = frameToIndexToFeatures.get( frame );
+			for ( Integer labelIndex : indexToFeatures.keySet() )
+			{
+				final SegmentFeatures features = indexToFeatures.get( labelIndex );
+				columnNameToColumnEntries.get( INDEX ).add( String.valueOf( labelIndex ) );
+				columnNameToColumnEntries.get( NAME ).add( labelImageName );
+				columnNameToColumnEntries.get( X ).add( String.valueOf( features.anchorX ) );
+				columnNameToColumnEntries.get( Y ).add( String.valueOf( features.anchorY ) );
+				columnNameToColumnEntries.get( Z ).add( String.valueOf( features.anchorZ ) );
+				columnNameToColumnEntries.get( T ).add( String.valueOf( frame ) );
+				columnNameToColumnEntries.get( N_PIXELS ).add( String.valueOf( features.numPixels ) );
+				columnNameToColumnEntries.get( VOLUME ).add( String.valueOf( features.volume ) );
+				columnNameToColumnEntries.get( BB_MIN_X ).add( String.valueOf( features.bbMinX ) );
+				columnNameToColumnEntries.get( BB_MIN_Y ).add( String.valueOf( features.bbMinY ) );
+				columnNameToColumnEntries.get( BB_MIN_Z ).add( String.valueOf( features.bbMinZ ) );
+				columnNameToColumnEntries.get( BB_MAX_X ).add( String.valueOf( features.bbMaxX ) );
+				columnNameToColumnEntries.get( BB_MAX_Y ).add( String.valueOf( features.bbMaxY ) );
+				columnNameToColumnEntries.get( BB_MAX_Z ).add( String.valueOf( features.bbMaxZ ) );
+				for ( int c = 0; c < intensityNames.size(); c++ )
+				{
+					final String intensityName = intensityNames.get( c );
+					columnNameToColumnEntries.get( getIntensityColumnName( MEAN_INTENSITY, intensityName ) ).add( String.valueOf( features.meanIntensity[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( SUM_INTENSITY, intensityName ) ).add( String.valueOf( features.sumIntensity[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( MIN_INTENSITY, intensityName ) ).add( String.valueOf( features.minIntensity[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( MAX_INTENSITY, intensityName ) ).add( String.valueOf( features.maxIntensity[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( VARIANCE_INTENSITY, intensityName ) ).add( String.valueOf( features.varianceIntensity[ c ] ) );
+					if ( addQuantiles )
+					{
+						columnNameToColumnEntries.get( getIntensityColumnName( MEDIAN_INTENSITY, intensityName ) ).add( String.valueOf( features.medianIntensity[ c ] ) );
+						columnNameToColumnEntries.get( getIntensityColumnName( P95_INTENSITY, intensityName ) ).add( String.valueOf( features.p95Intensity[ c ] ) );
+					}
+				}
+			}
 		}
 		return columnNameToColumnEntries;
 	}
+
+	/**
+	 * Adds the shape feature columns, with the rows in the same order as created by {@link #createColumns}.
+	 */
+	private static void addShapeColumns( Map< String, List< String > > columnNameToColumnEntries, Map< Integer, Map< Integer, SegmentFeatures > > frameToIndexToFeatures, Map< Integer, Map< Integer, ShapeFeatures > > frameToIndexToShape )
+	{
+		final String[] columnNames = { MAJOR_AXIS, MEDIUM_AXIS, MINOR_AXIS, MAJOR_AXIS_X, MAJOR_AXIS_Y, MAJOR_AXIS_Z, ELONGATION, FLATNESS, SURFACE_AREA, SPHERICITY };
+		for ( String columnName : columnNames )
+			columnNameToColumnEntries.put( columnName, new ArrayList< String >() );
+
+		for ( Integer frame : frameToIndexToFeatures.keySet() )
+		{
+			final Map< Integer, ShapeFeatures > indexToShape = frameToIndexToShape.get( frame );
+			for ( Integer labelIndex : frameToIndexToFeatures.get( frame ).keySet() )
+			{
+				final ShapeFeatures shape = indexToShape.get( labelIndex );
+				columnNameToColumnEntries.get( MAJOR_AXIS ).add( String.valueOf( shape.majorAxis ) );
+				columnNameToColumnEntries.get( MEDIUM_AXIS ).add( String.valueOf( shape.mediumAxis ) );
+				columnNameToColumnEntries.get( MINOR_AXIS ).add( String.valueOf( shape.minorAxis ) );
+				columnNameToColumnEntries.get( MAJOR_AXIS_X ).add( String.valueOf( shape.majorAxisX ) );
+				columnNameToColumnEntries.get( MAJOR_AXIS_Y ).add( String.valueOf( shape.majorAxisY ) );
+				columnNameToColumnEntries.get( MAJOR_AXIS_Z ).add( String.valueOf( shape.majorAxisZ ) );
+				columnNameToColumnEntries.get( ELONGATION ).add( String.valueOf( shape.elongation ) );
+				columnNameToColumnEntries.get( FLATNESS ).add( String.valueOf( shape.flatness ) );
+				columnNameToColumnEntries.get( SURFACE_AREA ).add( String.valueOf( shape.surfaceArea ) );
+				columnNameToColumnEntries.get( SPHERICITY ).add( String.valueOf( shape.sphericity ) );
+			}
+		}
+	}
+
+	/**
+	 * Adds the texture feature columns per intensity image,
+	 * with the rows in the same order as created by {@link #createColumns}.
+	 */
+	private static void addTextureColumns( Map< String, List< String > > columnNameToColumnEntries, Map< Integer, Map< Integer, SegmentFeatures > > frameToIndexToFeatures, Map< Integer, Map< Integer, TextureFeatures > > frameToIndexToTexture, List< String > intensityNames )
+	{
+		final String[] features = { GLCM_CONTRAST, GLCM_CORRELATION, GLCM_ENERGY, GLCM_HOMOGENEITY, GLCM_ENTROPY };
+		for ( String intensityName : intensityNames )
+			for ( String feature : features )
+				columnNameToColumnEntries.put( getIntensityColumnName( feature, intensityName ), new ArrayList< String >() );
+
+		for ( Integer frame : frameToIndexToFeatures.keySet() )
+		{
+			final Map< Integer, TextureFeatures > indexToTexture = frameToIndexToTexture.get( frame );
+			for ( Integer labelIndex : frameToIndexToFeatures.get( frame ).keySet() )
+			{
+				final TextureFeatures texture = indexToTexture.get( labelIndex );
+				for ( int c = 0; c < intensityNames.size(); c++ )
+				{
+					final String intensityName = intensityNames.get( c );
+					columnNameToColumnEntries.get( getIntensityColumnName( GLCM_CONTRAST, intensityName ) ).add( String.valueOf( texture.contrast[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( GLCM_CORRELATION, intensityName ) ).add( String.valueOf( texture.correlation[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( GLCM_ENERGY, intensityName ) ).add( String.valueOf( texture.energy[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( GLCM_HOMOGENEITY, intensityName ) ).add( String.valueOf( texture.homogeneity[ c ] ) );
+					columnNameToColumnEntries.get( getIntensityColumnName( GLCM_ENTROPY, intensityName ) ).add( String.valueOf( texture.entropy[ c ] ) );
+				}
+			}
+		}
+	}
+
+	private static FeatureComputationJob createJob( String name, FeatureComputationJob.ProgressListener progressListener )
+	{
+		final FeatureComputationJob job = new FeatureComputationJob( name );
+		job.addProgressListener( progressListener );
+		return job;
+	}
+
+	/**
+	 * Analyzes a virtual label stack block by block via its source,
+	 * such that it does not need to fit into memory.
+	 */
+	private static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabelSource( Map< SourceAndConverter< ? >, SourceMetadata > sources, String labelImageId, List< ImagePlus > intensityImages, Map< ImagePlus, String > intensityImageToId, int numFrames, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		final Source< ? extends RealType< ? > > labelSource = getSource( sources, labelImageId, true );
+		final List< Source< ? extends RealType< ? > > > intensitySources = new ArrayList<>();
+		for ( ImagePlus intensityImage : intensityImages )
+			intensitySources.add( getSource( sources, intensityImageToId.get( intensityImage ), false ) );
+
+		return SourceLabelAnalyzer.analyzeFrames( labelSource, intensitySources, numFrames, Runtime.getRuntime().availableProcessors(), computeQuantiles, job );
+	}
+
+	private static Source< ? extends RealType< ? > > getSource( Map< SourceAndConverter< ? >, SourceMetadata > sources, String imageId, boolean isLabelSource )
+	{
+		for ( Map.Entry< SourceAndConverter< ? >, SourceMetadata > entry : sources.entrySet() )
+		{
+			if ( entry.getValue().imageId.equals( imageId ) && entry.getValue().isLabelSource == isLabelSource )
+				return ( Source< ? extends RealType< ? > > ) entry.getKey().getSpimSource();
+		}
+		throw new RuntimeException( "There is no source for the image " + imageId );
+	}
+
+	/**
+	 * Adds the number of touching segments and the size of the boundary shared with them,
+	 * with the rows in the same order as created by {@link #createColumns}.
+	 */
+	private static void addNeighborColumns( Map< String, List< String > > columnNameToColumnEntries, Map< Integer, Map< Integer, SegmentFeatures > > frameToIndexToFeatures, Map< Integer, LabelAdjacencyGraph > frameToAdjacency )
+	{
+		columnNameToColumnEntries.put( NUM_NEIGHBORS, new ArrayList< String >() );
+		columnNameToColumnEntries.put( SHARED_BOUNDARY, new ArrayList< String >() );
+
+		for ( Integer frame : frameToIndexToFeatures.keySet() )
+		{
+			final LabelAdjacencyGraph adjacency = frameToAdjacency.get( frame );
+			for ( Integer labelIndex : frameToIndexToFeatures.get( frame ).keySet() )
+			{
+				columnNameToColumnEntries.get( NUM_NEIGHBORS ).add( String.valueOf( adjacency.getNumNeighbors( labelIndex ) ) );
+				columnNameToColumnEntries.get( SHARED_BOUNDARY ).add( String.valueOf( adjacency.getTotalSharedBoundary( labelIndex ) ) );
+			}
+		}
+	}
+
+	private static String getIntensityColumnName( String feature, String intensityName )
+	{
+		return feature + "_" + intensityName;
+	}
 }
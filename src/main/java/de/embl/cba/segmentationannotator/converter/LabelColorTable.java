@@ -0,0 +1,81 @@
+package de.embl.cba.segmentationannotator.converter;
+
+import de.embl.cba.segmentationannotator.label.LabelIndexMap;
+
+/**
+ * An immutable lookup table from integer label to packed ARGB color.
+ * <p>
+ * The labels are indexed by a {@link LabelIndexMap}, which is dense
+ * if the labels are compact and sparse otherwise.
+ * Labels that are not in the table (including the background label 0)
+ * are mapped to 0, i.e. black and transparent.
+ * <p>
+ * Optionally, the table holds a second, dimmed color per label,
+ * which a converter can choose per voxel, e.g. depending on the selection.
+ */
+public class LabelColorTable
+{
+	public static final LabelColorTable EMPTY = new LabelColorTable( new LabelIndexMap( 0 ), new int[ 0 ] );
+
+	private final LabelIndexMap labelToIndex;
+	private final int[] colors;
+	private final int[] dimmedColors;
+
+	/**
+	 * @param labelToIndex
+	 *            the labels, which must not be modified anymore
+	 * @param colors
+	 *            the packed ARGB color for each label index
+	 */
+	public LabelColorTable( LabelIndexMap labelToIndex, int[] colors )
+	{
+		this( labelToIndex, colors, null );
+	}
+
+	/**
+	 * @param dimmedColors
+	 *            the packed ARGB dimmed color for each label index, or null
+	 */
+	public LabelColorTable( LabelIndexMap labelToIndex, int[] colors, int[] dimmedColors )
+	{
+		this.labelToIndex = labelToIndex;
+		this.colors = colors;
+		this.dimmedColors = dimmedColors;
+	}
+
+	public int get( long label )
+	{
+		final int index = getIndex( label );
+		if ( index < 0 ) return 0;
+		return colors[ index ];
+	}
+
+	/**
+	 * @return the index of the label, or -1 if the label is not in the table
+	 */
+	public int getIndex( long label )
+	{
+		if ( label == 0 || label < Integer.MIN_VALUE || label > Integer.MAX_VALUE ) return -1;
+		return labelToIndex.get( ( int ) label );
+	}
+
+	public int getColor( int index )
+	{
+		return colors[ index ];
+	}
+
+	public boolean hasDimmedColors()
+	{
+		return dimmedColors != null;
+	}
+
+	public int getDimmedColor( int index )
+	{
+		return dimmedColors[ index ];
+	}
+
+	public long getMemoryInBytes()
+	{
+		return labelToIndex.getMemoryInBytes() + 4L * colors.length + ( dimmedColors == null ? 0 : 4L * dimmedColors.length );
+	}
+}
@@ -29,6 +29,7 @@
 package de.embl.cba.segmentationannotator.converter;
 
 import de.embl.cba.bdv.utils.lut.GlasbeyARGBLut;
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
 import de.embl.cba.tables.color.LazyCategoryColoringModel;
 import net.imglib2.Volatile;
 import net.imglib2.converter.Converter;
@@ -36,15 +37,31 @@ import net.imglib2.display.ColorConverter;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.RealType;
 
+/**
+ * Converts label values into random colors.
+ * <p>
+ * The colors of the labels 0 ... {@link #TABLE_SIZE} - 1 are precomputed
+ * from the coloring model, including the brightness, into a packed ARGB table;
+ * larger labels reuse the colors modulo the table size.
+ * The table is rebuilt whenever the coloring model, the brightness
+ * or the single color changes, such that the conversion of a voxel
+ * is one table lookup.
+ */
 public class LabelConverter implements Converter< RealType, ARGBType >, ColorConverter
 {
+	public static final int TABLE_SIZE = 1 << 10;
+	private static final long TABLE_MASK = TABLE_SIZE - 1;
+
 	private final LazyCategoryColoringModel< Double > coloringModel;
 	private ARGBType singleColor;
 	private double max = 300;
+	private volatile int[] colorTable;
 
 	public LabelConverter()
 	{
 		this.coloringModel = new LazyCategoryColoringModel<>( new GlasbeyARGBLut( 255 ) );
+		this.coloringModel.listeners().add( () -> updateColorTable() );
+		updateColorTable();
 	}
 
 	@Override
@@ -54,28 +71,52 @@ public class LabelConverter implements Converter< RealType, ARGBType >, ColorCon
 		{
 			if ( ! ( ( Volatile ) label ).isValid() )
 			{
+				RenderMetrics.countInvalidVolatileVoxel();
 				color.set( 0 );
 				return;
 			}
 		}
 
-		final double realDouble = label.getRealDouble();
+		RenderMetrics.countConvertedVoxel();
+
+		final long labelValue = ( long ) label.getRealDouble();
 
-		if ( realDouble == 0 )
+		if ( labelValue == 0 )
 		{
 			color.set( 0 );
 			return;
 		}
 
-		if ( singleColor != null )
+		color.set( colorTable[ ( int ) ( labelValue & TABLE_MASK ) ] );
+	}
+
+	/**
+	 * Recomputes the colors of all labels.
+	 * <p>
+	 * This is called automatically upon changes of the coloring model,
+	 * the brightness and the single color.
+	 */
+	public synchronized void updateColorTable()
+	{
+		final long start = System.nanoTime();
+		final int[] colors = new int[ TABLE_SIZE ];
+		final ARGBType color = new ARGBType();
+		// label 0 is background, thus the first entry is used by the multiples of the table size
+		for ( int label = 1; label <= TABLE_SIZE; label++ )
 		{
-			color.set( singleColor.get() );
-			return;
-		}
+			if ( singleColor != null )
+			{
+				colors[ ( int ) ( label & TABLE_MASK ) ] = singleColor.get();
+				continue;
+			}
 
-		coloringModel.convert( realDouble, color );
+			coloringModel.convert( ( double ) label, color );
+			color.mul( 100 / max ); // changes the intensity
+			colors[ ( int ) ( label & TABLE_MASK ) ] = color.get();
+		}
 
-		color.mul( 100 / max ); // changes the intensity
+		colorTable = colors;
+		RenderMetrics.countColorTableMiss( System.nanoTime() - start );
 	}
 
 	public LazyCategoryColoringModel< Double > getColoringModel()
@@ -86,6 +127,7 @@ public class LabelConverter implements Converter< RealType, ARGBType >, ColorCon
 	public void setSingleColor( ARGBType argbType )
 	{
 		singleColor = argbType;
+		updateColorTable();
 	}
 
 	@Override
@@ -128,5 +170,6 @@ public class LabelConverter implements Converter< RealType, ARGBType >, ColorCon
 	public void setMax( double max )
 	{
 		this.max = max;
+		updateColorTable();
 	}
 }
@@ -29,37 +29,106 @@
 package de.embl.cba.segmentationannotator.converter;
 
 import bdv.viewer.TimePointListener;
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
+import de.embl.cba.segmentationannotator.label.SegmentFilter;
+import de.embl.cba.segmentationannotator.label.SegmentIndex;
+import de.embl.cba.segmentationannotator.label.SelectedLabels;
 import de.embl.cba.tables.color.ColoringModel;
+import de.embl.cba.tables.color.SelectionColoringModel;
 import de.embl.cba.tables.imagesegment.ImageSegment;
-import de.embl.cba.tables.imagesegment.LabelFrameAndImage;
+import de.embl.cba.tables.select.SelectionListener;
 import net.imglib2.Volatile;
 import net.imglib2.converter.Converter;
 import net.imglib2.display.ColorConverter;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.RealType;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Converts the label values of a label mask image into the colors of
+ * the corresponding image segments.
+ * <p>
+ * The colors are not computed for every voxel, but are precomputed for all
+ * segments of one frame into a {@link LabelColorTable}.
+ * The tables are rebuilt whenever the coloring or the selection changes,
+ * such that the conversion of a voxel does not allocate any objects.
+ * <p>
+ * In the {@link SelectionColoringModel.SelectionColoringMode#DimNotSelected} mode,
+ * the tables hold a normal and a dimmed color per segment and the converter
+ * tests the bit of the segment in the {@link SelectedLabels}, such that
+ * a change of the selection does not require to rebuild the tables.
+ * <p>
+ * Likewise, segments that are hidden by a {@link SegmentFilter} are painted as background
+ * by testing their bit in the visibility bitset of the current frame.
+ */
 public class SegmentsConverter< T extends ImageSegment > implements Converter< RealType, ARGBType >, TimePointListener, ColorConverter
 {
-	private final Map< LabelFrameAndImage, T > labelFrameAndImageToSegment;
-	private final String imageId;
+	private final SegmentIndex< T > segmentIndex;
+	private final int imageIndex;
 	private final ColoringModel< T > coloringModel;
+	private final SelectedLabels< T > selectedLabels;
+	private final SegmentFilter< T > segmentFilter;
+	private final Map< Integer, LabelColorTable > frameToColorTable;
 	private ARGBType singleColor;
 
 	private int frame;
 	private double max = 300;
+	private volatile SegmentIndex.FrameSegments< T > frameSegments;
+	private volatile long[] selectedBits;
+	private volatile long[] visibleBits;
+	private volatile LabelColorTable colorTable;
 
 	public SegmentsConverter(
-			Map< LabelFrameAndImage, T > labelFrameAndImageToSegment,
+			SegmentIndex< T > segmentIndex,
 			String imageId,
 			ColoringModel coloringModel )
 	{
-		this.labelFrameAndImageToSegment = labelFrameAndImageToSegment;
-		this.imageId = imageId;
+		this( segmentIndex, imageId, coloringModel, null );
+	}
+
+	/**
+	 * @param selectedLabels
+	 *            the selected segments as bitsets, or null to recompute the colors upon every selection change
+	 */
+	public SegmentsConverter(
+			SegmentIndex< T > segmentIndex,
+			String imageId,
+			ColoringModel coloringModel,
+			SelectedLabels< T > selectedLabels )
+	{
+		this( segmentIndex, imageId, coloringModel, selectedLabels, null );
+	}
+
+	/**
+	 * @param segmentFilter
+	 *            the segments to render, or null to render all segments
+	 */
+	public SegmentsConverter(
+			SegmentIndex< T > segmentIndex,
+			String imageId,
+			ColoringModel coloringModel,
+			SelectedLabels< T > selectedLabels,
+			SegmentFilter< T > segmentFilter )
+	{
+		this.segmentIndex = segmentIndex;
+		this.imageIndex = segmentIndex.getImageIndex( imageId );
 		this.coloringModel = coloringModel;
+		this.selectedLabels = selectedLabels;
+		this.segmentFilter = segmentFilter;
 		this.singleColor = null;
 		this.frame = 0;
+		this.frameSegments = segmentIndex.getFrameSegments( imageIndex, frame );
+		if ( selectedLabels != null )
+			this.selectedBits = selectedLabels.getBits( imageIndex, frame );
+		if ( segmentFilter != null )
+			this.visibleBits = segmentFilter.getVisibleBits( imageIndex, frame );
+		this.frameToColorTable = new ConcurrentHashMap<>();
+
+		registerAsColoringListener();
+		updateColorTables();
 	}
 
 	@Override
@@ -69,46 +138,179 @@ public class SegmentsConverter< T extends ImageSegment > implements Converter< R
 		{
 			if ( ! ( ( Volatile ) label ).isValid() )
 			{
+				RenderMetrics.countInvalidVolatileVoxel();
 				color.set( 0 );
 				return;
 			}
 		}
 
-		if ( label.getRealDouble() == 0 )
+		RenderMetrics.countConvertedVoxel();
+
+		final double labelValue = label.getRealDouble();
+
+		if ( labelValue == 0 )
 		{
 			color.set( 0 );
 			return;
 		}
 
-		if ( singleColor != null )
+		final LabelColorTable table = colorTable;
+		final boolean isFiltered = segmentFilter != null && segmentFilter.isActive();
+
+		if ( singleColor != null && ! isFiltered )
 		{
 			color.set( singleColor.get() );
 			return;
 		}
 
-		final LabelFrameAndImage labelFrameAndImage = new LabelFrameAndImage( label.getRealDouble(), frame, imageId  );
+		if ( isFiltered || table.hasDimmedColors() )
+		{
+			final int index = table.getIndex( ( long ) labelValue );
+			if ( index < 0 || isFiltered && ! SegmentFilter.isVisible( visibleBits, index ) )
+				color.set( 0 );
+			else if ( singleColor != null )
+				color.set( singleColor.get() );
+			else if ( ! table.hasDimmedColors() )
+				color.set( table.getColor( index ) );
+			else if ( selectedLabels.isAnySelected() && ! SelectedLabels.isSelected( selectedBits, index ) )
+				color.set( table.getDimmedColor( index ) );
+			else
+				color.set( table.getColor( index ) );
+			return;
+		}
+
+		color.set( table.get( ( long ) labelValue ) );
+	}
+
+	/**
+	 * Discards all precomputed colors and recomputes the colors of the current frame.
+	 * <p>
+	 * This is called automatically upon changes of the coloring or selection model,
+	 * but must be called explicitly if the colors change in another way.
+	 */
+	public synchronized void updateColorTables()
+	{
+		frameToColorTable.clear();
+		colorTable = getColorTable( frame );
+	}
 
-		final T imageSegment = labelFrameAndImageToSegment.get( labelFrameAndImage );
+	private void registerAsColoringListener()
+	{
+		coloringModel.listeners().add( () -> updateColorTables() );
 
-		if ( imageSegment == null )
+		if ( coloringModel instanceof SelectionColoringModel )
 		{
-			color.set( 0 );
+			( ( SelectionColoringModel< T > ) coloringModel ).getSelectionModel().listeners().add( new SelectionListener< T >()
+			{
+				@Override
+				public void selectionChanged()
+				{
+					// the dimmed colors are chosen per voxel from the selected labels
+					if ( ! colorTable.hasDimmedColors() )
+						updateColorTables();
+				}
+
+				@Override
+				public void focusEvent( T selection )
+				{
+					// the focus does not change the colors
+				}
+			} );
 		}
-		else
+	}
+
+	private LabelColorTable getColorTable( int frame )
+	{
+		final LabelColorTable cachedTable = frameToColorTable.get( frame );
+		if ( cachedTable != null )
+		{
+			RenderMetrics.countColorTableHit();
+			return cachedTable;
+		}
+
+		final long start = System.nanoTime();
+		final LabelColorTable table = frameToColorTable.computeIfAbsent( frame, this::createColorTable );
+		RenderMetrics.countColorTableMiss( System.nanoTime() - start );
+		return table;
+	}
+
+	private LabelColorTable createColorTable( int frame )
+	{
+		final SegmentIndex.FrameSegments< T > frameSegments = segmentIndex.getFrameSegments( imageIndex, frame );
+		final List< T > segments = frameSegments.getSegments();
+		final int[] colors = new int[ segments.size() ];
+		final ARGBType color = new ARGBType();
+
+		if ( isDimmingNotSelected() )
 		{
-			coloringModel.convert( imageSegment, color );
+			final SelectionColoringModel< T > selectionColoringModel = ( SelectionColoringModel< T > ) coloringModel;
+			final ColoringModel< T > wrappedColoringModel = selectionColoringModel.getColoringModel();
+			final double brightnessNotSelected = selectionColoringModel.getBrightnessNotSelected();
+			final int[] dimmedColors = new int[ segments.size() ];
+
+			for ( int index = 0; index < segments.size(); index++ )
+			{
+				wrappedColoringModel.convert( segments.get( index ), color );
+				final int argb = color.get();
+				colors[ index ] = toDisplayColor( argb, 1.0, color );
+				dimmedColors[ index ] = toDisplayColor( argb, brightnessNotSelected, color );
+			}
+
+			return new LabelColorTable( frameSegments.getLabelIndexMap(), colors, dimmedColors );
+		}
 
-			final int alpha = ARGBType.alpha( color.get() );
-			if( alpha < 255 )
-				color.mul( alpha / 255.0 );
+		for ( int index = 0; index < segments.size(); index++ )
+		{
+			coloringModel.convert( segments.get( index ), color );
+			colors[ index ] = toDisplayColor( color.get(), 1.0, color );
 		}
 
+		return new LabelColorTable( frameSegments.getLabelIndexMap(), colors );
+	}
+
+	/**
+	 * @param brightness
+	 *            scales the alpha, which, as for all colors, is then multiplied into the color channels
+	 */
+	private int toDisplayColor( int argb, double brightness, ARGBType color )
+	{
+		color.set( argb );
+		if ( brightness < 1.0 )
+			color.set( ARGBType.rgba( ARGBType.red( argb ), ARGBType.green( argb ), ARGBType.blue( argb ), ARGBType.alpha( argb ) * brightness ) );
+
+		final int alpha = ARGBType.alpha( color.get() );
+		if( alpha < 255 )
+			color.mul( alpha / 255.0 );
+
 		color.mul( 100 / max ); // changes the intensity
+
+		return color.get();
+	}
+
+	private boolean isDimmingNotSelected()
+	{
+		return selectedLabels != null
+				&& coloringModel instanceof SelectionColoringModel
+				&& ( ( SelectionColoringModel< T > ) coloringModel ).getSelectionColoringMode() == SelectionColoringModel.SelectionColoringMode.DimNotSelected;
 	}
 
-	public void timePointChanged( int timePointIndex )
+	public synchronized void timePointChanged( int timePointIndex )
 	{
 		this.frame = timePointIndex;
+		frameSegments = segmentIndex.getFrameSegments( imageIndex, frame );
+		if ( selectedLabels != null )
+			selectedBits = selectedLabels.getBits( imageIndex, frame );
+		if ( segmentFilter != null )
+			visibleBits = segmentFilter.getVisibleBits( imageIndex, frame );
+		colorTable = getColorTable( frame );
+	}
+
+	/**
+	 * @return the segment with this label in the current frame, or null if there is none
+	 */
+	public T getSegment( int label )
+	{
+		return frameSegments.get( label );
 	}
 
 	// TODO: could one use the setColor function?
@@ -157,5 +359,6 @@ public class SegmentsConverter< T extends ImageSegment > implements Converter< R
 	public void setMax( double max )
 	{
 		this.max = max;
+		updateColorTables();
 	}
 }
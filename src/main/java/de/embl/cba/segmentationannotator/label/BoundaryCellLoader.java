@@ -0,0 +1,224 @@
+package de.embl.cba.segmentationannotator.label;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes the boundaries of the labels within one cell, see {@link BoundaryMode}.
+ * Boundary voxels keep their label, all other voxels become background.
+ * <p>
+ * The labels of the cell and a margin are first copied into a flat array.
+ * In the {@link BoundaryMode#Sphere} mode, the neighborhood of a voxel is then
+ * a list of fixed array offsets, sorted by distance, such that the scan of
+ * a boundary voxel usually stops after a few offsets. In the {@link BoundaryMode#Slice2D}
+ * mode, the neighborhood is a disk and no margin is read along z.
+ * Outside of the image, the labels are background, such that, as for the boundaries
+ * that are computed on the fly, labels that touch the image border have a boundary there.
+ */
+class BoundaryCellLoader< T extends NativeType< T > & RealType< T > > implements CellLoader< T >
+{
+	private final RandomAccessibleInterval< T > labels;
+	private final int boundaryWidth;
+	private final BoundaryMode mode;
+
+	BoundaryCellLoader( RandomAccessibleInterval< T > labels, int boundaryWidth, BoundaryMode mode )
+	{
+		this.labels = labels;
+		this.boundaryWidth = boundaryWidth;
+		this.mode = mode;
+	}
+
+	@Override
+	public void load( SingleCellArrayImg< T, ? > cell )
+	{
+		// the distance transform needs the edge voxels within the boundary width,
+		// and thus one more voxel to determine which voxels are edge voxels
+		final int margin = mode == BoundaryMode.DistanceTransform ? boundaryWidth + 1 : boundaryWidth;
+		final int numDimensions = cell.numDimensions();
+		// slice-wise boundaries only need the labels of the slices of the cell
+		final int numNeighborhoodDimensions = mode == BoundaryMode.Slice2D ? Math.min( 2, numDimensions ) : numDimensions;
+
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+		final int[] size = { 1, 1, 1 };
+		final int[] margins = new int[ 3 ];
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			margins[ d ] = d < numNeighborhoodDimensions ? margin : 0;
+			min[ d ] = cell.min( d ) - margins[ d ];
+			max[ d ] = cell.max( d ) + margins[ d ];
+			size[ d ] = ( int ) cell.dimension( d ) + 2 * margins[ d ];
+		}
+
+		final long[] block = new long[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+		final Cursor< T > in = Views.flatIterable( Views.interval( Views.extendZero( labels ), new FinalInterval( min, max ) ) ).cursor();
+		for ( int i = 0; i < block.length; i++ )
+			block[ i ] = ( long ) in.next().getRealDouble();
+
+		final boolean[] isBoundary = mode == BoundaryMode.DistanceTransform
+				? distanceTransformBoundaries( block, size, boundaryWidth )
+				: null;
+		final int[] offsets = mode == BoundaryMode.DistanceTransform
+				? null
+				: sphereOffsets( boundaryWidth, numNeighborhoodDimensions, size );
+
+		final Cursor< T > out = Views.flatIterable( cell ).cursor();
+		final int cellSizeX = size[ 0 ] - 2 * margins[ 0 ];
+		final int cellSizeY = size[ 1 ] - 2 * margins[ 1 ];
+		final int cellSizeZ = size[ 2 ] - 2 * margins[ 2 ];
+		for ( int z = 0; z < cellSizeZ; z++ )
+		{
+			for ( int y = 0; y < cellSizeY; y++ )
+			{
+				int i = ( ( z + margins[ 2 ] ) * size[ 1 ] + ( y + margins[ 1 ] ) ) * size[ 0 ] + margins[ 0 ];
+				for ( int x = 0; x < cellSizeX; x++, i++ )
+				{
+					final long label = block[ i ];
+					final boolean boundary = label != 0 && ( isBoundary != null ? isBoundary[ i ] : isSphereBoundary( block, i, label, offsets ) );
+					out.next().setReal( boundary ? label : 0 );
+				}
+			}
+		}
+	}
+
+	private static boolean isSphereBoundary( long[] block, int i, long label, int[] offsets )
+	{
+		for ( int offset : offsets )
+			if ( block[ i + offset ] != label )
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the flat offsets of all voxels within the sphere, except its center, nearest first
+	 */
+	static int[] sphereOffsets( int radius, int numDimensions, int[] size )
+	{
+		final int radiusZ = numDimensions > 2 ? radius : 0;
+		final List< int[] > positions = new ArrayList<>();
+		for ( int dz = -radiusZ; dz <= radiusZ; dz++ )
+			for ( int dy = -radius; dy <= radius; dy++ )
+				for ( int dx = -radius; dx <= radius; dx++ )
+				{
+					final int squaredDistance = dx * dx + dy * dy + dz * dz;
+					if ( squaredDistance == 0 || squaredDistance > radius * radius ) continue;
+					positions.add( new int[]{ squaredDistance, ( dz * size[ 1 ] + dy ) * size[ 0 ] + dx } );
+				}
+
+		positions.sort( Comparator.comparingInt( position -> position[ 0 ] ) );
+		return positions.stream().mapToInt( position -> position[ 1 ] ).toArray();
+	}
+
+	/**
+	 * The edge voxels are the voxels with a direct neighbor of another label.
+	 * A voxel is a boundary voxel if its squared Euclidean distance to the
+	 * nearest edge voxel is less than the squared boundary width; for a width of one,
+	 * these are exactly the boundary voxels of the {@link BoundaryMode#Sphere} mode.
+	 * <p>
+	 * The squared distances are computed by one pass of the 1D lower envelope
+	 * algorithm of Felzenszwalb and Huttenlocher per axis,
+	 * in time linear in the number of voxels.
+	 */
+	static boolean[] distanceTransformBoundaries( long[] block, int[] size, int boundaryWidth )
+	{
+		final int numVoxels = block.length;
+		final double infinity = Double.MAX_VALUE / 4;
+		final double[] squaredDistances = new double[ numVoxels ];
+		final int[] strides = { 1, size[ 0 ], size[ 0 ] * size[ 1 ] };
+
+		for ( int z = 0, i = 0; z < size[ 2 ]; z++ )
+			for ( int y = 0; y < size[ 1 ]; y++ )
+				for ( int x = 0; x < size[ 0 ]; x++, i++ )
+				{
+					final long label = block[ i ];
+					final boolean isEdge =
+							( x > 0 && block[ i - 1 ] != label ) || ( x < size[ 0 ] - 1 && block[ i + 1 ] != label )
+							|| ( y > 0 && block[ i - strides[ 1 ] ] != label ) || ( y < size[ 1 ] - 1 && block[ i + strides[ 1 ] ] != label )
+							|| ( z > 0 && block[ i - strides[ 2 ] ] != label ) || ( z < size[ 2 ] - 1 && block[ i + strides[ 2 ] ] != label );
+					squaredDistances[ i ] = isEdge ? 0 : infinity;
+				}
+
+		final int maxSize = Math.max( size[ 0 ], Math.max( size[ 1 ], size[ 2 ] ) );
+		final double[] line = new double[ maxSize ];
+		final double[] transformedLine = new double[ maxSize ];
+		final int[] parabolaPositions = new int[ maxSize ];
+		final double[] parabolaBounds = new double[ maxSize + 1 ];
+
+		for ( int d = 0; d < 3; d++ )
+		{
+			final int length = size[ d ];
+			if ( length == 1 ) continue;
+			final int stride = strides[ d ];
+
+			for ( int start = 0; start < numVoxels; start++ )
+			{
+				// visit each line once, starting from its first voxel
+				if ( ( start / stride ) % length != 0 ) continue;
+
+				for ( int k = 0; k < length; k++ )
+					line[ k ] = squaredDistances[ start + k * stride ];
+
+				transformLine( line, length, transformedLine, parabolaPositions, parabolaBounds );
+
+				for ( int k = 0; k < length; k++ )
+					squaredDistances[ start + k * stride ] = transformedLine[ k ];
+			}
+		}
+
+		final double squaredWidth = ( double ) boundaryWidth * boundaryWidth;
+		final boolean[] isBoundary = new boolean[ numVoxels ];
+		for ( int i = 0; i < numVoxels; i++ )
+			isBoundary[ i ] = squaredDistances[ i ] < squaredWidth;
+		return isBoundary;
+	}
+
+	/**
+	 * The squared Euclidean distance transform of a line of sampled function values
+	 * (Felzenszwalb and Huttenlocher, 2012).
+	 */
+	private static void transformLine( double[] f, int length, double[] result, int[] v, double[] z )
+	{
+		int k = 0;
+		v[ 0 ] = 0;
+		z[ 0 ] = Double.NEGATIVE_INFINITY;
+		z[ 1 ] = Double.POSITIVE_INFINITY;
+
+		for ( int q = 1; q < length; q++ )
+		{
+			double s = intersection( f, v[ k ], q );
+			while ( s <= z[ k ] )
+			{
+				k--;
+				s = intersection( f, v[ k ], q );
+			}
+			k++;
+			v[ k ] = q;
+			z[ k ] = s;
+			z[ k + 1 ] = Double.POSITIVE_INFINITY;
+		}
+
+		k = 0;
+		for ( int q = 0; q < length; q++ )
+		{
+			while ( z[ k + 1 ] < q )
+				k++;
+			final double distance = q - v[ k ];
+			result[ q ] = distance * distance + f[ v[ k ] ];
+		}
+	}
+
+	private static double intersection( double[] f, int p, int q )
+	{
+		return ( ( f[ q ] + ( double ) q * q ) - ( f[ p ] + ( double ) p * p ) ) / ( 2.0 * ( q - p ) );
+	}
+}
@@ -0,0 +1,28 @@
+package de.embl.cba.segmentationannotator.label;
+
+/**
+ * How the boundaries of the labels are computed for display.
+ */
+public enum BoundaryMode
+{
+	/**
+	 * A voxel is a boundary voxel if any voxel within a sphere of the boundary width
+	 * has another label. The cost grows with the cube of the width.
+	 */
+	Sphere,
+
+	/**
+	 * A voxel is a boundary voxel if its distance to the edge of its label is less than
+	 * the boundary width, using a separable Euclidean distance transform.
+	 * The cost is nearly independent of the width, which makes it the faster choice
+	 * for widths of more than two voxels.
+	 */
+	DistanceTransform,
+
+	/**
+	 * As {@link #Sphere}, but with a disk within the XY plane, i.e. each z-slice is treated
+	 * as a 2D image. This matches the usual view of 3D label images along z and reads
+	 * no neighboring slices, which is much cheaper for anisotropic stacks.
+	 */
+	Slice2D
+}
@@ -0,0 +1,138 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Source;
+import de.embl.cba.tables.Logger;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The label boundaries of all time points and resolution levels of a label {@link Source},
+ * computed lazily per cell by a {@link BoundaryCellLoader} and kept in memory,
+ * such that repeated renders of the same region do not recompute the boundaries.
+ * <p>
+ * The number of cached cells per image and the number of cached images are bounded,
+ * the least recently used are discarded first. The cache is only invalidated
+ * if the boundary width or the {@link BoundaryMode} changes.
+ * <p>
+ * The boundaries are always computed from the non-volatile labels. For rendering
+ * with a volatile source, they are wrapped as volatile images, such that the cells are
+ * computed in the background and BDV does not block.
+ */
+class CachedBoundaries< T extends NativeType< T > & RealType< T > >
+{
+	private static final int MAX_CACHED_IMAGES = 4;
+	private static final int MAX_CACHED_CELLS_PER_IMAGE = 256;
+	private static final int[] DEFAULT_CELL_DIMENSIONS = { 64, 64, 32 };
+
+	private final Source< T > labels;
+	private final Map< String, CachedCellImg< T, ? > > keyToBoundaries;
+	private final Map< String, RandomAccessibleInterval< ? > > keyToVolatileBoundaries;
+	private SharedQueue queue;
+	private int boundaryWidth = -1;
+	private BoundaryMode mode;
+
+	CachedBoundaries( Source< T > labels )
+	{
+		this.labels = labels;
+		this.keyToBoundaries = createLruMap();
+		this.keyToVolatileBoundaries = createLruMap();
+	}
+
+	synchronized RandomAccessibleInterval< T > getBoundaries( int t, int level, int boundaryWidth, BoundaryMode mode )
+	{
+		invalidateIfChanged( boundaryWidth, mode );
+		return keyToBoundaries.computeIfAbsent( key( t, level ), key -> createBoundaries( t, level ) );
+	}
+
+	/**
+	 * @return the boundaries with the volatile type of the labels
+	 */
+	synchronized RandomAccessibleInterval< ? > getVolatileBoundaries( int t, int level, int boundaryWidth, BoundaryMode mode )
+	{
+		invalidateIfChanged( boundaryWidth, mode );
+		return keyToVolatileBoundaries.computeIfAbsent( key( t, level ), key -> VolatileViews.wrapAsVolatile( getBoundaries( t, level, boundaryWidth, mode ), getQueue() ) );
+	}
+
+	private void invalidateIfChanged( int boundaryWidth, BoundaryMode mode )
+	{
+		if ( boundaryWidth == this.boundaryWidth && mode == this.mode ) return;
+
+		keyToBoundaries.clear();
+		keyToVolatileBoundaries.clear();
+		this.boundaryWidth = boundaryWidth;
+		this.mode = mode;
+	}
+
+	private CachedCellImg< T, ? > createBoundaries( int t, int level )
+	{
+		final RandomAccessibleInterval< T > rai = labels.getSource( t, level );
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( getCellDimensions( rai ) )
+				.cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
+				.maxCacheSize( MAX_CACHED_CELLS_PER_IMAGE );
+
+		Logger.info( "Computing boundaries of " + labels.getName() + ", time point " + t + ", level " + level + ", width " + boundaryWidth + ", mode " + mode );
+
+		final CachedCellImg< T, ? > boundaries = new ReadOnlyCachedCellImgFactory( options ).create(
+				rai.dimensionsAsLongArray(),
+				labels.getType().createVariable(),
+				new BoundaryCellLoader<>( rai, boundaryWidth, mode ) );
+
+		return boundaries;
+	}
+
+	/**
+	 * Uses the cells of the labels, if any, such that computing a boundary cell
+	 * mostly needs one cell of labels.
+	 */
+	private static int[] getCellDimensions( RandomAccessibleInterval< ? > rai )
+	{
+		if ( rai instanceof AbstractCellImg )
+		{
+			final int[] cellDimensions = new int[ rai.numDimensions() ];
+			( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid().cellDimensions( cellDimensions );
+			return cellDimensions;
+		}
+
+		final int[] cellDimensions = new int[ rai.numDimensions() ];
+		for ( int d = 0; d < cellDimensions.length; d++ )
+			cellDimensions[ d ] = ( int ) Math.min( rai.dimension( d ), DEFAULT_CELL_DIMENSIONS[ Math.min( d, 2 ) ] );
+		return cellDimensions;
+	}
+
+	private SharedQueue getQueue()
+	{
+		if ( queue == null )
+			queue = new SharedQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+		return queue;
+	}
+
+	private static String key( int t, int level )
+	{
+		return t + "-" + level;
+	}
+
+	private static < V > Map< String, V > createLruMap()
+	{
+		return new LinkedHashMap< String, V >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< String, V > eldest )
+			{
+				return size() > MAX_CACHED_IMAGES;
+			}
+		};
+	}
+}
@@ -0,0 +1,153 @@
+package de.embl.cba.segmentationannotator.label;
+
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+
+/**
+ * A {@link RandomAccess} that delegates the positioning to another {@link RandomAccess},
+ * for wrappers that only change what {@link #get()} returns.
+ */
+abstract class DelegatingRandomAccess< T > implements RandomAccess< T >
+{
+	protected final RandomAccess< T > access;
+
+	DelegatingRandomAccess( RandomAccess< T > access )
+	{
+		this.access = access;
+	}
+
+	@Override
+	public abstract DelegatingRandomAccess< T > copy();
+
+	@Override
+	public DelegatingRandomAccess< T > copyRandomAccess()
+	{
+		return copy();
+	}
+
+	@Override
+	public void localize( int[] position )
+	{
+		access.localize( position );
+	}
+
+	@Override
+	public void localize( long[] position )
+	{
+		access.localize( position );
+	}
+
+	@Override
+	public int getIntPosition( int d )
+	{
+		return access.getIntPosition( d );
+	}
+
+	@Override
+	public long getLongPosition( int d )
+	{
+		return access.getLongPosition( d );
+	}
+
+	@Override
+	public void localize( float[] position )
+	{
+		access.localize( position );
+	}
+
+	@Override
+	public void localize( double[] position )
+	{
+		access.localize( position );
+	}
+
+	@Override
+	public float getFloatPosition( int d )
+	{
+		return access.getFloatPosition( d );
+	}
+
+	@Override
+	public double getDoublePosition( int d )
+	{
+		return access.getDoublePosition( d );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return access.numDimensions();
+	}
+
+	@Override
+	public void fwd( int d )
+	{
+		access.fwd( d );
+	}
+
+	@Override
+	public void bck( int d )
+	{
+		access.bck( d );
+	}
+
+	@Override
+	public void move( int distance, int d )
+	{
+		access.move( distance, d );
+	}
+
+	@Override
+	public void move( long distance, int d )
+	{
+		access.move( distance, d );
+	}
+
+	@Override
+	public void move( Localizable localizable )
+	{
+		access.move( localizable );
+	}
+
+	@Override
+	public void move( int[] distance )
+	{
+		access.move( distance );
+	}
+
+	@Override
+	public void move( long[] distance )
+	{
+		access.move( distance );
+	}
+
+	@Override
+	public void setPosition( Localizable localizable )
+	{
+		access.setPosition( localizable );
+	}
+
+	@Override
+	public void setPosition( int[] position )
+	{
+		access.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( long[] position )
+	{
+		access.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( int position, int d )
+	{
+		access.setPosition( position, d );
+	}
+
+	@Override
+	public void setPosition( long position, int d )
+	{
+		access.setPosition( position, d );
+	}
+}
@@ -0,0 +1,174 @@
+package de.embl.cba.segmentationannotator.label;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the progress of a feature computation and allows to cancel it.
+ * <p>
+ * The analyzers report the number of processed voxels after each slab
+ * (z-slice or block) and check for cancellation at the same points,
+ * i.e. a cancelled job stops after the slabs that are currently processed.
+ * The {@link ProgressListener}s are notified at most every
+ * {@link #NOTIFICATION_INTERVAL_MILLIS} and once when the job is finished.
+ * <p>
+ * All methods may be called from any thread.
+ */
+public class FeatureComputationJob
+{
+	public static final long NOTIFICATION_INTERVAL_MILLIS = 200;
+
+	public interface ProgressListener
+	{
+		void progress( FeatureComputationJob job );
+	}
+
+	private final String name;
+	private final List< ProgressListener > listeners = new CopyOnWriteArrayList<>();
+	private final AtomicLong processedVoxels = new AtomicLong();
+	private final AtomicLong lastNotificationMillis = new AtomicLong();
+	private volatile long totalVoxels;
+	private volatile long startMillis;
+	private volatile long finishMillis;
+	private volatile boolean cancelled;
+
+	public FeatureComputationJob( String name )
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void addProgressListener( ProgressListener listener )
+	{
+		listeners.add( listener );
+	}
+
+	/**
+	 * Called by the analyzer before the first voxel is processed.
+	 */
+	public void start( long totalVoxels )
+	{
+		this.totalVoxels = totalVoxels;
+		processedVoxels.set( 0 );
+		finishMillis = 0;
+		startMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Called by the analyzer after the last voxel has been processed.
+	 */
+	public void finish()
+	{
+		finishMillis = System.currentTimeMillis();
+		notifyListeners();
+	}
+
+	/**
+	 * Called by the analyzer after each slab.
+	 */
+	public void addProcessedVoxels( long numVoxels )
+	{
+		processedVoxels.addAndGet( numVoxels );
+
+		final long now = System.currentTimeMillis();
+		final long last = lastNotificationMillis.get();
+		if ( now - last >= NOTIFICATION_INTERVAL_MILLIS && lastNotificationMillis.compareAndSet( last, now ) )
+			notifyListeners();
+	}
+
+	/**
+	 * Requests the job to stop; the analyzer will throw a {@link CancellationException}.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Called by the analyzer between slabs.
+	 *
+	 * @throws CancellationException
+	 *             if the job has been cancelled
+	 */
+	public void checkCancelled()
+	{
+		if ( cancelled )
+			throw new CancellationException( name + " has been cancelled." );
+	}
+
+	public boolean isFinished()
+	{
+		return finishMillis != 0;
+	}
+
+	public long getProcessedVoxels()
+	{
+		return processedVoxels.get();
+	}
+
+	public long getTotalVoxels()
+	{
+		return totalVoxels;
+	}
+
+	/**
+	 * @return the fraction of processed voxels, in [0,1]
+	 */
+	public double getProgress()
+	{
+		return totalVoxels == 0 ? 0 : Math.min( 1.0, ( double ) getProcessedVoxels() / totalVoxels );
+	}
+
+	public long getElapsedMillis()
+	{
+		if ( startMillis == 0 ) return 0;
+		return ( isFinished() ? finishMillis : System.currentTimeMillis() ) - startMillis;
+	}
+
+	public double getVoxelsPerSecond()
+	{
+		final long elapsedMillis = getElapsedMillis();
+		return elapsedMillis == 0 ? 0 : 1000.0 * getProcessedVoxels() / elapsedMillis;
+	}
+
+	/**
+	 * @return the estimated remaining time, extrapolated from the current throughput, or -1 if unknown
+	 */
+	public long getEstimatedRemainingMillis()
+	{
+		final double voxelsPerSecond = getVoxelsPerSecond();
+		if ( voxelsPerSecond == 0 ) return -1;
+		return ( long ) ( 1000.0 * Math.max( 0, totalVoxels - getProcessedVoxels() ) / voxelsPerSecond );
+	}
+
+	/**
+	 * @return the progress, throughput and remaining or elapsed time, for status bars and logging
+	 */
+	public String getSummary()
+	{
+		if ( isFinished() )
+			return String.format( "%s: %d voxels in %.1f s (%.1f Mvoxels/s)",
+					name, getProcessedVoxels(), getElapsedMillis() / 1000.0, getVoxelsPerSecond() / 1.0E6 );
+
+		final long remainingMillis = getEstimatedRemainingMillis();
+		return String.format( "%s: %.0f%% (%.1f Mvoxels/s), %s remaining",
+				name, 100 * getProgress(), getVoxelsPerSecond() / 1.0E6, remainingMillis < 0 ? "unknown time" : String.format( "%.0f s", remainingMillis / 1000.0 ) );
+	}
+
+	private void notifyListeners()
+	{
+		for ( ProgressListener listener : listeners )
+			listener.progress( this );
+	}
+}
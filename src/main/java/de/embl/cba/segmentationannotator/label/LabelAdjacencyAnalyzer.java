@@ -0,0 +1,251 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.viewer.Source;
+import de.embl.cba.tables.Logger;
+import de.embl.cba.tables.Utils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes which segments touch each other.
+ * <p>
+ * Each voxel is only compared to its forward neighbours in x, y and z,
+ * such that every shared face is counted exactly once.
+ * The image is partitioned as in the {@link LabelAnalyzer}, respectively
+ * the {@link SourceLabelAnalyzer}, and each task counts the shared faces
+ * into its own {@link LabelEdgeAccumulator}.
+ */
+public class LabelAdjacencyAnalyzer
+{
+	public final static Map< Integer, LabelAdjacencyGraph > analyzeAdjacency( ImagePlus labels )
+	{
+		return analyzeAdjacency( labels, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @return the adjacency graph per frame; frames are zero-based
+	 */
+	public final static Map< Integer, LabelAdjacencyGraph > analyzeAdjacency( ImagePlus labels, int numThreads )
+	{
+		return analyzeAdjacency( labels, numThreads, new FeatureComputationJob( "Adjacency analysis of " + labels.getTitle() ) );
+	}
+
+	/**
+	 * As {@link #analyzeAdjacency(ImagePlus, int)}, reporting the progress to the job.
+	 *
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public final static Map< Integer, LabelAdjacencyGraph > analyzeAdjacency( ImagePlus labels, int numThreads, FeatureComputationJob job )
+	{
+		final ImageStack stack = labels.getImageStack();
+		final int[][] stackIndices = LabelAnalyzer.getStackIndices( labels );
+		final Calibration calibration = labels.getCalibration();
+		final double[] voxelSpacing = new double[]{ calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth };
+		final boolean is2D = labels.getNSlices() == 1;
+
+		final int numFrames = stackIndices.length;
+		final int sizeZ = stackIndices[ 0 ].length;
+		final int numTasksPerFrame = Math.max( 1, Math.min( numThreads / numFrames, sizeZ ) );
+
+		job.start( ( long ) numFrames * sizeZ * labels.getWidth() * labels.getHeight() );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numFrames * numTasksPerFrame ) ) );
+		try
+		{
+			final List< List< Future< LabelEdgeAccumulator > > > frameToFutures = new ArrayList<>();
+			for ( int t = 0; t < numFrames; t++ )
+			{
+				final List< Future< LabelEdgeAccumulator > > futures = new ArrayList<>();
+				for ( int task = 0; task < numTasksPerFrame; task++ )
+				{
+					final int frame = t;
+					final int firstZ = task;
+					futures.add( executorService.submit( () -> analyzeSlices( stack, stackIndices[ frame ], firstZ, numTasksPerFrame, job ) ) );
+				}
+				frameToFutures.add( futures );
+			}
+
+			final Map< Integer, LabelAdjacencyGraph > frameToGraph = new TreeMap<>();
+			for ( int t = 0; t < numFrames; t++ )
+			{
+				final List< Future< LabelEdgeAccumulator > > futures = frameToFutures.get( t );
+				final LabelEdgeAccumulator accumulator = futures.get( 0 ).get();
+				for ( int task = 1; task < numTasksPerFrame; task++ )
+					accumulator.merge( futures.get( task ).get() );
+
+				frameToGraph.put( t, accumulator.createGraph( voxelSpacing, is2D ) );
+			}
+
+			job.finish();
+			Logger.info( job.getSummary() );
+
+			return frameToGraph;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the adjacency of the labels in " + labels.getTitle(), e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Computes the adjacency graphs of a (lazily loaded) label {@link Source} at resolution level 0.
+	 * The frames are analyzed one after the other, as one job over the voxels of all frames.
+	 *
+	 * @return the adjacency graph per frame; frames are zero-based
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public static Map< Integer, LabelAdjacencyGraph > analyzeFrames( Source< ? extends RealType< ? > > labels, int numFrames, int numThreads, FeatureComputationJob job )
+	{
+		long numVoxels = 0;
+		for ( int t = 0; t < numFrames; t++ )
+			numVoxels += Intervals.numElements( labels.getSource( t, 0 ) );
+		job.start( numVoxels );
+
+		final Map< Integer, LabelAdjacencyGraph > frameToGraph = new TreeMap<>();
+		for ( int t = 0; t < numFrames; t++ )
+			frameToGraph.put( t, analyze( labels, t, numThreads, job ) );
+
+		job.finish();
+		Logger.info( job.getSummary() );
+		return frameToGraph;
+	}
+
+	/**
+	 * Analyzes one frame, reporting the processed voxels to the job, which is started and finished by the caller.
+	 */
+	private static LabelAdjacencyGraph analyze( Source< ? extends RealType< ? > > labels, int t, int numThreads, FeatureComputationJob job )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > labelsRAI = labels.getSource( t, 0 );
+		final double[] voxelSpacing = Utils.getVoxelSpacings( labels ).get( 0 );
+		final boolean is2D = labelsRAI.numDimensions() < 3 || labelsRAI.dimension( 2 ) == 1;
+
+		final List< Interval > blocks = SourceLabelAnalyzer.getBlocks( labelsRAI );
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int numTasks = Math.max( 1, Math.min( numThreads, blocks.size() ) );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numTasks );
+		try
+		{
+			final List< Future< LabelEdgeAccumulator > > futures = new ArrayList<>();
+			for ( int task = 0; task < numTasks; task++ )
+			{
+				futures.add( executorService.submit( () -> {
+					final LabelEdgeAccumulator accumulator = new LabelEdgeAccumulator();
+					for ( int block = nextBlock.getAndIncrement(); block < blocks.size(); block = nextBlock.getAndIncrement() )
+					{
+						job.checkCancelled();
+						analyzeBlock( labelsRAI, blocks.get( block ), accumulator );
+						job.addProcessedVoxels( Intervals.numElements( blocks.get( block ) ) );
+					}
+					return accumulator;
+				} ) );
+			}
+
+			final LabelEdgeAccumulator accumulator = futures.get( 0 ).get();
+			for ( int task = 1; task < numTasks; task++ )
+				accumulator.merge( futures.get( task ).get() );
+
+			return accumulator.createGraph( voxelSpacing, is2D );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the adjacency of the labels in " + labels.getName(), e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	private static LabelEdgeAccumulator analyzeSlices( ImageStack labels, int[] stackIndices, int firstZ, int stepZ, FeatureComputationJob job )
+	{
+		final int sizeX = labels.getWidth();
+		final int sizeY = labels.getHeight();
+		final int sizeZ = stackIndices.length;
+
+		final LabelEdgeAccumulator accumulator = new LabelEdgeAccumulator();
+
+		for ( int z = firstZ; z < sizeZ; z += stepZ )
+		{
+			job.checkCancelled();
+
+			final ImageProcessor slice = labels.getProcessor( stackIndices[ z ] );
+			final ImageProcessor nextSlice = z < sizeZ - 1 ? labels.getProcessor( stackIndices[ z + 1 ] ) : null;
+
+			for ( int y = 0, i = 0; y < sizeY; y++ )
+			{
+				for ( int x = 0; x < sizeX; x++, i++ )
+				{
+					final int label = ( int ) slice.getf( i );
+
+					if ( label == 0 ) continue;
+
+					if ( x < sizeX - 1 ) addEdge( accumulator, label, ( int ) slice.getf( i + 1 ), 0 );
+					if ( y < sizeY - 1 ) addEdge( accumulator, label, ( int ) slice.getf( i + sizeX ), 1 );
+					if ( nextSlice != null ) addEdge( accumulator, label, ( int ) nextSlice.getf( i ), 2 );
+				}
+			}
+
+			job.addProcessedVoxels( ( long ) sizeX * sizeY );
+		}
+
+		return accumulator;
+	}
+
+	private static void analyzeBlock( RandomAccessibleInterval< ? extends RealType< ? > > labels, Interval block, LabelEdgeAccumulator accumulator )
+	{
+		final int numDimensions = labels.numDimensions();
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( Views.interval( labels, block ) ).localizingCursor();
+		final RandomAccess< ? extends RealType< ? > > neighbor = labels.randomAccess();
+
+		while ( cursor.hasNext() )
+		{
+			final int label = ( int ) cursor.next().getRealDouble();
+
+			if ( label == 0 ) continue;
+
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				// neighbours in the next block are read from there, but only counted here
+				if ( cursor.getLongPosition( d ) == labels.max( d ) ) continue;
+				neighbor.setPosition( cursor );
+				neighbor.fwd( d );
+				addEdge( accumulator, label, ( int ) neighbor.get().getRealDouble(), d );
+			}
+		}
+	}
+
+	private static void addEdge( LabelEdgeAccumulator accumulator, int label, int neighborLabel, int axis )
+	{
+		if ( neighborLabel != 0 && neighborLabel != label )
+			accumulator.add( label, neighborLabel, axis );
+	}
+}
@@ -0,0 +1,110 @@
+package de.embl.cba.segmentationannotator.label;
+
+import java.util.Arrays;
+
+/**
+ * The graph of touching segments in one frame of a label image.
+ * <p>
+ * The neighbours of all labels are stored in compressed sparse row format,
+ * i.e. in one int[] of neighbour labels plus one int[] of offsets per label.
+ */
+public class LabelAdjacencyGraph
+{
+	private static final int[] NO_NEIGHBORS = new int[ 0 ];
+
+	private final long[] edges;
+	private final double[] sharedBoundaries;
+	private final LabelIndexMap labelToIndex;
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final double[] neighborSharedBoundaries;
+
+	/**
+	 * @param edges
+	 *            the edges as packed by {@link LabelEdgeAccumulator#edgeKey}
+	 * @param sharedBoundaries
+	 *            the calibrated size of the boundary shared by the two labels of each edge
+	 */
+	public LabelAdjacencyGraph( long[] edges, double[] sharedBoundaries )
+	{
+		this.edges = edges;
+		this.sharedBoundaries = sharedBoundaries;
+		this.labelToIndex = new LabelIndexMap();
+
+		int[] degrees = new int[ 16 ];
+		for ( long edge : edges )
+		{
+			degrees = incrementDegree( degrees, labelToIndex.add( LabelEdgeAccumulator.firstLabel( edge ) ) );
+			degrees = incrementDegree( degrees, labelToIndex.add( LabelEdgeAccumulator.secondLabel( edge ) ) );
+		}
+
+		final int numLabels = labelToIndex.size();
+		offsets = new int[ numLabels + 1 ];
+		for ( int index = 0; index < numLabels; index++ )
+			offsets[ index + 1 ] = offsets[ index ] + degrees[ index ];
+
+		neighbors = new int[ 2 * edges.length ];
+		neighborSharedBoundaries = new double[ 2 * edges.length ];
+		final int[] fill = Arrays.copyOf( offsets, numLabels );
+		for ( int edge = 0; edge < edges.length; edge++ )
+		{
+			final int labelA = LabelEdgeAccumulator.firstLabel( edges[ edge ] );
+			final int labelB = LabelEdgeAccumulator.secondLabel( edges[ edge ] );
+			final int indexA = labelToIndex.get( labelA );
+			final int indexB = labelToIndex.get( labelB );
+			neighborSharedBoundaries[ fill[ indexA ] ] = sharedBoundaries[ edge ];
+			neighbors[ fill[ indexA ]++ ] = labelB;
+			neighborSharedBoundaries[ fill[ indexB ] ] = sharedBoundaries[ edge ];
+			neighbors[ fill[ indexB ]++ ] = labelA;
+		}
+	}
+
+	public int getNumEdges()
+	{
+		return edges.length;
+	}
+
+	public long getEdge( int edge )
+	{
+		return edges[ edge ];
+	}
+
+	public double getEdgeSharedBoundary( int edge )
+	{
+		return sharedBoundaries[ edge ];
+	}
+
+	public int[] getNeighbors( int label )
+	{
+		final int index = labelToIndex.get( label );
+		if ( index < 0 ) return NO_NEIGHBORS;
+		return Arrays.copyOfRange( neighbors, offsets[ index ], offsets[ index + 1 ] );
+	}
+
+	public int getNumNeighbors( int label )
+	{
+		final int index = labelToIndex.get( label );
+		if ( index < 0 ) return 0;
+		return offsets[ index + 1 ] - offsets[ index ];
+	}
+
+	/**
+	 * @return the calibrated size of the boundary that the label shares with all other labels
+	 */
+	public double getTotalSharedBoundary( int label )
+	{
+		final int index = labelToIndex.get( label );
+		if ( index < 0 ) return 0;
+		double sharedBoundary = 0;
+		for ( int i = offsets[ index ]; i < offsets[ index + 1 ]; i++ )
+			sharedBoundary += neighborSharedBoundaries[ i ];
+		return sharedBoundary;
+	}
+
+	private static int[] incrementDegree( int[] degrees, int index )
+	{
+		if ( index >= degrees.length ) degrees = Arrays.copyOf( degrees, 2 * degrees.length );
+		degrees[ index ]++;
+		return degrees;
+	}
+}
@@ -1,55 +1,336 @@
 package de.embl.cba.segmentationannotator.label;
 
+import de.embl.cba.tables.Logger;
+import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LabelAnalyzer
 {
 	public final static Map< Integer, SegmentFeatures > analyzeLabels( ImageStack labels, Calibration calibration )
 	{
-		int sizeX = labels.getWidth();
-		int sizeY = labels.getHeight();
-		int sizeZ = labels.getSize();
+		return analyzeLabels( labels, new ImageStack[ 0 ], calibration );
+	}
+
+	public final static Map< Integer, SegmentFeatures > analyzeLabels( ImageStack labels, ImageStack[] intensities, Calibration calibration )
+	{
+		return analyzeLabels( labels, intensities, calibration, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Computes the features of all segments in the label stack, including
+	 * the intensity statistics of the segments in each of the intensity stacks.
+	 * <p>
+	 * All slices of the stack are treated as z-slices of one frame.
+	 *
+	 * @param intensities
+	 *            the intensity channels, which must have the same dimensions as the labels
+	 */
+	public final static Map< Integer, SegmentFeatures > analyzeLabels( ImageStack labels, ImageStack[] intensities, Calibration calibration, int numThreads )
+	{
+		for ( ImageStack intensity : intensities )
+		{
+			if ( ! hasSameDimensions( labels, intensity ) )
+				throw new IllegalArgumentException( "The intensity image " + intensity + " does not have the same dimensions as the label image " + labels );
+		}
+
+		final int[][] labelStackIndices = getStackIndices( labels.getSize() );
+		final int[][][] intensityStackIndices = new int[ intensities.length ][][];
+		for ( int c = 0; c < intensities.length; c++ )
+			intensityStackIndices[ c ] = labelStackIndices;
+
+		return analyze( labels, labelStackIndices, intensities, intensityStackIndices, calibration, numThreads, false, new FeatureComputationJob( "Label analysis" ) ).get( 0 );
+	}
+
+	public final static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities )
+	{
+		return analyzeLabels( labels, intensities, Runtime.getRuntime().availableProcessors() );
+	}
 
-		final HashMap< Integer, SegmentFeatures > indexToFeatures = new HashMap<>();
+	/**
+	 * Computes the features of all segments in all frames of the label hyperstack,
+	 * including the intensity statistics of the segments in the first channel
+	 * of each of the intensity hyperstacks.
+	 * <p>
+	 * The frames are analyzed concurrently. If there are fewer frames than threads,
+	 * the z-slices of each frame are in addition distributed onto several tasks.
+	 *
+	 * @param intensities
+	 *            the intensity images, which must have the same dimensions as the labels
+	 * @return the features of the segments, per frame and label; frames are zero-based
+	 */
+	public final static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities, int numThreads )
+	{
+		return analyzeLabels( labels, intensities, numThreads, false );
+	}
 
-		for (int z = 0; z < sizeZ; z++)
+	/**
+	 * As {@link #analyzeLabels(ImagePlus, ImagePlus[], int)}, but optionally in addition
+	 * computes the approximate median and 95th percentile of the intensities of each segment,
+	 * see {@link SegmentFeatures#medianIntensity} and {@link SegmentFeatures#p95Intensity}.
+	 */
+	public final static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities, int numThreads, boolean computeQuantiles )
+	{
+		return analyzeLabels( labels, intensities, numThreads, computeQuantiles, new FeatureComputationJob( "Label analysis of " + labels.getTitle() ) );
+	}
+
+	/**
+	 * As {@link #analyzeLabels(ImagePlus, ImagePlus[], int, boolean)}, reporting the progress to the job.
+	 *
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the job is cancelled
+	 */
+	public final static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities, int numThreads, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		final ImageStack[] intensityStacks = new ImageStack[ intensities.length ];
+		final int[][][] intensityStackIndices = new int[ intensities.length ][][];
+		for ( int c = 0; c < intensities.length; c++ )
 		{
-			for (int y = 0; y < sizeY; y++)
+			if ( ! hasSameDimensions( labels, intensities[ c ] ) )
+				throw new IllegalArgumentException( "The intensity image " + intensities[ c ].getTitle() + " does not have the same dimensions as the label image " + labels.getTitle() );
+
+			intensityStacks[ c ] = intensities[ c ].getImageStack();
+			intensityStackIndices[ c ] = getStackIndices( intensities[ c ] );
+		}
+
+		return analyze( labels.getImageStack(), getStackIndices( labels ), intensityStacks, intensityStackIndices, labels.getCalibration(), numThreads, computeQuantiles, job );
+	}
+
+	public static boolean hasSameDimensions( ImageStack labels, ImageStack intensities )
+	{
+		return labels.getWidth() == intensities.getWidth()
+				&& labels.getHeight() == intensities.getHeight()
+				&& labels.getSize() == intensities.getSize();
+	}
+
+	public static boolean hasSameDimensions( ImagePlus labels, ImagePlus intensities )
+	{
+		return labels.getWidth() == intensities.getWidth()
+				&& labels.getHeight() == intensities.getHeight()
+				&& labels.getNSlices() == intensities.getNSlices()
+				&& labels.getNFrames() == intensities.getNFrames();
+	}
+
+	/**
+	 * @param labelStackIndices
+	 *            the one-based stack index, per frame and z-slice
+	 * @param intensityStackIndices
+	 *            the one-based stack index, per intensity channel, frame and z-slice
+	 */
+	private static Map< Integer, Map< Integer, SegmentFeatures > > analyze(
+			ImageStack labels,
+			int[][] labelStackIndices,
+			ImageStack[] intensities,
+			int[][][] intensityStackIndices,
+			Calibration calibration,
+			int numThreads,
+			boolean computeQuantiles,
+			FeatureComputationJob job )
+	{
+		final int numFrames = labelStackIndices.length;
+		final int sizeZ = labelStackIndices[ 0 ].length;
+		final int numTasksPerFrame = Math.max( 1, Math.min( numThreads / numFrames, sizeZ ) );
+
+		job.start( ( long ) numFrames * sizeZ * labels.getWidth() * labels.getHeight() );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numFrames * numTasksPerFrame ) ) );
+		try
+		{
+			final List< List< Future< SegmentFeaturesAccumulator > > > frameToFutures = new ArrayList<>();
+			for ( int t = 0; t < numFrames; t++ )
 			{
-				for (int x = 0; x < sizeX; x++)
+				final List< Future< SegmentFeaturesAccumulator > > futures = new ArrayList<>();
+				for ( int task = 0; task < numTasksPerFrame; task++ )
 				{
-					final int index = ( int ) labels.getVoxel( x, y, z );
-
-					if ( index == 0 ) continue;
-
-					if ( ! indexToFeatures.containsKey( index ) )
-					{
-						final SegmentFeatures segmentFeatures = new SegmentFeatures();
-						indexToFeatures.put( index, segmentFeatures );
-					}
-					final SegmentFeatures segmentFeatures = indexToFeatures.get( index );
-					segmentFeatures.numPixels++;
-					segmentFeatures.anchorX += x;
-					segmentFeatures.anchorY += y;
-					segmentFeatures.anchorZ += z;
-					//segmentFeatures.meanIntensity += intensities.getVoxel( x, y, z );
+					final int frame = t;
+					final int firstZ = task;
+					futures.add( executorService.submit( () -> analyzeSlices( labels, labelStackIndices, intensities, intensityStackIndices, frame, firstZ, numTasksPerFrame, true, computeQuantiles, job ) ) );
 				}
+				frameToFutures.add( futures );
+			}
+
+			final Map< Integer, Map< Integer, SegmentFeatures > > frameToFeatures = new TreeMap<>();
+			String largestFrameMemoryReport = null;
+			int largestFrameNumLabels = -1;
+			for ( int t = 0; t < numFrames; t++ )
+			{
+				final List< Future< SegmentFeaturesAccumulator > > futures = frameToFutures.get( t );
+				final SegmentFeaturesAccumulator accumulator = futures.get( 0 ).get();
+				for ( int task = 1; task < numTasksPerFrame; task++ )
+					accumulator.merge( futures.get( task ).get() );
+
+				if ( accumulator.getNumLabels() > largestFrameNumLabels )
+				{
+					largestFrameNumLabels = accumulator.getNumLabels();
+					largestFrameMemoryReport = accumulator.getMemoryReport();
+				}
+
+				frameToFeatures.put( t, accumulator.getFeatures( calibration ) );
+			}
+
+			job.finish();
+			Logger.info( job.getSummary() );
+			Logger.info( "Label analysis, largest frame: " + largestFrameMemoryReport );
+
+			return frameToFeatures;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the labels of " + labels, e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Analyzes every stepZ-th slice of frame t, starting at firstZ.
+	 * <p>
+	 * If specialized is true, 8-bit, 16-bit and 32-bit label slices are read
+	 * directly from their pixel arrays, otherwise through {@link ImageProcessor#getf}.
+	 */
+	static SegmentFeaturesAccumulator analyzeSlices(
+			ImageStack labels,
+			int[][] labelStackIndices,
+			ImageStack[] intensities,
+			int[][][] intensityStackIndices,
+			int t,
+			int firstZ,
+			int stepZ,
+			boolean specialized,
+			boolean computeQuantiles,
+			FeatureComputationJob job )
+	{
+		final int sizeX = labels.getWidth();
+		final int sizeY = labels.getHeight();
+		final int sizeZ = labelStackIndices[ t ].length;
+		final int numChannels = intensities.length;
+
+		final SegmentFeaturesAccumulator accumulator = new SegmentFeaturesAccumulator( numChannels, computeQuantiles );
+		final ImageProcessor[] intensitySlices = new ImageProcessor[ numChannels ];
+
+		for ( int z = firstZ; z < sizeZ; z += stepZ )
+		{
+			job.checkCancelled();
+
+			for ( int c = 0; c < numChannels; c++ )
+				intensitySlices[ c ] = intensities[ c ].getProcessor( intensityStackIndices[ c ][ t ][ z ] );
+
+			final Object pixels = specialized ? labels.getPixels( labelStackIndices[ t ][ z ] ) : null;
+
+			if ( pixels instanceof byte[] )
+				analyzeSlice( ( byte[] ) pixels, sizeX, sizeY, z, intensitySlices, accumulator );
+			else if ( pixels instanceof short[] )
+				analyzeSlice( ( short[] ) pixels, sizeX, sizeY, z, intensitySlices, accumulator );
+			else if ( pixels instanceof float[] )
+				analyzeSlice( ( float[] ) pixels, sizeX, sizeY, z, intensitySlices, accumulator );
+			else
+				analyzeSlice( labels.getProcessor( labelStackIndices[ t ][ z ] ), sizeX, sizeY, z, intensitySlices, accumulator );
+
+			job.addProcessedVoxels( ( long ) sizeX * sizeY );
+		}
+
+		return accumulator;
+	}
+
+	private static void analyzeSlice( byte[] labels, int sizeX, int sizeY, int z, ImageProcessor[] intensitySlices, SegmentFeaturesAccumulator accumulator )
+	{
+		for ( int y = 0, i = 0; y < sizeY; y++ )
+		{
+			for ( int x = 0; x < sizeX; x++, i++ )
+			{
+				final int label = labels[ i ] & 0xff;
+
+				if ( label == 0 ) continue;
+
+				addVoxel( accumulator, label, x, y, z, i, intensitySlices );
 			}
 		}
+	}
 
-		for ( SegmentFeatures segmentFeatures : indexToFeatures.values() )
+	private static void analyzeSlice( short[] labels, int sizeX, int sizeY, int z, ImageProcessor[] intensitySlices, SegmentFeaturesAccumulator accumulator )
+	{
+		for ( int y = 0, i = 0; y < sizeY; y++ )
 		{
-			segmentFeatures.anchorX *= calibration.pixelWidth / segmentFeatures.numPixels ;
-			segmentFeatures.anchorY *= calibration.pixelHeight / segmentFeatures.numPixels;
-			segmentFeatures.anchorZ *= calibration.pixelDepth / segmentFeatures.numPixels;
-			segmentFeatures.volume = segmentFeatures.numPixels * calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
-			//features.meanIntensity /= features.numPixels;
+			for ( int x = 0; x < sizeX; x++, i++ )
+			{
+				final int label = labels[ i ] & 0xffff;
+
+				if ( label == 0 ) continue;
+
+				addVoxel( accumulator, label, x, y, z, i, intensitySlices );
+			}
 		}
+	}
 
-		return indexToFeatures;
+	private static void analyzeSlice( float[] labels, int sizeX, int sizeY, int z, ImageProcessor[] intensitySlices, SegmentFeaturesAccumulator accumulator )
+	{
+		for ( int y = 0, i = 0; y < sizeY; y++ )
+		{
+			for ( int x = 0; x < sizeX; x++, i++ )
+			{
+				final int label = ( int ) labels[ i ];
+
+				if ( label <= 0 ) continue;
+
+				addVoxel( accumulator, label, x, y, z, i, intensitySlices );
+			}
+		}
+	}
+
+	private static void analyzeSlice( ImageProcessor labels, int sizeX, int sizeY, int z, ImageProcessor[] intensitySlices, SegmentFeaturesAccumulator accumulator )
+	{
+		for ( int y = 0, i = 0; y < sizeY; y++ )
+		{
+			for ( int x = 0; x < sizeX; x++, i++ )
+			{
+				final int label = ( int ) labels.getf( i );
+
+				if ( label <= 0 ) continue;
+
+				addVoxel( accumulator, label, x, y, z, i, intensitySlices );
+			}
+		}
+	}
+
+	private static void addVoxel( SegmentFeaturesAccumulator accumulator, int label, int x, int y, int z, int i, ImageProcessor[] intensitySlices )
+	{
+		final int labelIndex = accumulator.add( label, x, y, z );
+
+		for ( int c = 0; c < intensitySlices.length; c++ )
+			accumulator.addIntensity( labelIndex, c, intensitySlices[ c ].getf( i ) );
+	}
+
+	static int[][] getStackIndices( int sizeZ )
+	{
+		final int[][] stackIndices = new int[ 1 ][ sizeZ ];
+		for ( int z = 0; z < sizeZ; z++ )
+			stackIndices[ 0 ][ z ] = z + 1;
+		return stackIndices;
+	}
+
+	/**
+	 * @return the one-based stack index of the first channel, per frame and z-slice
+	 */
+	static int[][] getStackIndices( ImagePlus imagePlus )
+	{
+		final int[][] stackIndices = new int[ imagePlus.getNFrames() ][ imagePlus.getNSlices() ];
+		for ( int t = 0; t < imagePlus.getNFrames(); t++ )
+			for ( int z = 0; z < imagePlus.getNSlices(); z++ )
+				stackIndices[ t ][ z ] = imagePlus.getStackIndex( 1, z + 1, t + 1 );
+		return stackIndices;
 	}
 }
@@ -0,0 +1,167 @@
+package de.embl.cba.segmentationannotator.label;
+
+/**
+ * Counts the voxel faces shared by pairs of touching labels.
+ * <p>
+ * The label pairs are packed into primitive long keys, with the smaller label
+ * in the upper and the larger label in the lower 32 bits, and stored
+ * in an open-addressing hash table.
+ * <p>
+ * One accumulator must only be used by one thread.
+ * Accumulators of different parts of the image can be combined with {@link #merge}.
+ */
+public class LabelEdgeAccumulator
+{
+	private static final long EMPTY = 0;
+
+	private long[] keys;
+	private long[] facesX;
+	private long[] facesY;
+	private long[] facesZ;
+	private int mask;
+	private int size;
+
+	private long lastKey = EMPTY;
+	private int lastSlot;
+
+	public LabelEdgeAccumulator()
+	{
+		allocate( 1024 );
+	}
+
+	public static long edgeKey( int labelA, int labelB )
+	{
+		final int min = Math.min( labelA, labelB );
+		final int max = Math.max( labelA, labelB );
+		return ( ( long ) min << 32 ) | ( max & 0xFFFFFFFFL );
+	}
+
+	public static int firstLabel( long edgeKey )
+	{
+		return ( int ) ( edgeKey >>> 32 );
+	}
+
+	public static int secondLabel( long edgeKey )
+	{
+		return ( int ) edgeKey;
+	}
+
+	/**
+	 * Adds one shared face between two different, non-zero labels.
+	 *
+	 * @param axis
+	 *            the axis along which the two voxels are neighbours
+	 */
+	public void add( int labelA, int labelB, int axis )
+	{
+		final int slot = slotOf( edgeKey( labelA, labelB ) );
+		if ( axis == 0 ) facesX[ slot ]++;
+		else if ( axis == 1 ) facesY[ slot ]++;
+		else facesZ[ slot ]++;
+	}
+
+	public void merge( LabelEdgeAccumulator other )
+	{
+		for ( int otherSlot = 0; otherSlot < other.keys.length; otherSlot++ )
+		{
+			if ( other.keys[ otherSlot ] == EMPTY ) continue;
+			final int slot = slotOf( other.keys[ otherSlot ] );
+			facesX[ slot ] += other.facesX[ otherSlot ];
+			facesY[ slot ] += other.facesY[ otherSlot ];
+			facesZ[ slot ] += other.facesZ[ otherSlot ];
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param voxelSpacing
+	 *            the calibration in x, y and z
+	 * @param is2D
+	 *            if true, the shared boundary is a length instead of an area
+	 */
+	public LabelAdjacencyGraph createGraph( double[] voxelSpacing, boolean is2D )
+	{
+		final long[] edges = new long[ size ];
+		final double[] sharedBoundaries = new double[ size ];
+
+		final double areaX = is2D ? voxelSpacing[ 1 ] : voxelSpacing[ 1 ] * voxelSpacing[ 2 ];
+		final double areaY = is2D ? voxelSpacing[ 0 ] : voxelSpacing[ 0 ] * voxelSpacing[ 2 ];
+		final double areaZ = voxelSpacing[ 0 ] * voxelSpacing[ 1 ];
+
+		int edge = 0;
+		for ( int slot = 0; slot < keys.length; slot++ )
+		{
+			if ( keys[ slot ] == EMPTY ) continue;
+			edges[ edge ] = keys[ slot ];
+			sharedBoundaries[ edge ] = facesX[ slot ] * areaX + facesY[ slot ] * areaY + facesZ[ slot ] * areaZ;
+			edge++;
+		}
+
+		return new LabelAdjacencyGraph( edges, sharedBoundaries );
+	}
+
+	private int slotOf( long key )
+	{
+		// neighbouring voxels mostly touch the same pair of segments
+		if ( key == lastKey ) return lastSlot;
+
+		int slot = hash( key ) & mask;
+		while ( keys[ slot ] != key )
+		{
+			if ( keys[ slot ] == EMPTY )
+			{
+				keys[ slot ] = key;
+				if ( 2 * ++size > keys.length )
+				{
+					allocate( 2 * keys.length );
+					return slotOf( key );
+				}
+				break;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+
+		lastKey = key;
+		lastSlot = slot;
+		return slot;
+	}
+
+	private void allocate( int capacity )
+	{
+		final long[] oldKeys = keys;
+		final long[] oldFacesX = facesX;
+		final long[] oldFacesY = facesY;
+		final long[] oldFacesZ = facesZ;
+
+		keys = new long[ capacity ];
+		facesX = new long[ capacity ];
+		facesY = new long[ capacity ];
+		facesZ = new long[ capacity ];
+		mask = capacity - 1;
+		lastKey = EMPTY;
+
+		if ( oldKeys == null ) return;
+
+		for ( int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++ )
+		{
+			if ( oldKeys[ oldSlot ] == EMPTY ) continue;
+			int slot = hash( oldKeys[ oldSlot ] ) & mask;
+			while ( keys[ slot ] != EMPTY )
+				slot = ( slot + 1 ) & mask;
+			keys[ slot ] = oldKeys[ oldSlot ];
+			facesX[ slot ] = oldFacesX[ oldSlot ];
+			facesY[ slot ] = oldFacesY[ oldSlot ];
+			facesZ[ slot ] = oldFacesZ[ oldSlot ];
+		}
+	}
+
+	private static int hash( long key )
+	{
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return ( int ) ( h ^ ( h >>> 32 ) );
+	}
+}
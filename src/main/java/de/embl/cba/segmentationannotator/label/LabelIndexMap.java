@@ -0,0 +1,223 @@
+package de.embl.cba.segmentationannotator.label;
+
+import java.util.Arrays;
+
+/**
+ * Maps positive integer labels to consecutive indices 0, 1, 2, ...
+ * in the order in which the labels are added; 0 and negative values are background.
+ * <p>
+ * As long as the labels are compact, the indices are stored in a dense int[]
+ * that is addressed by the label itself. Once a label is added that would
+ * make the dense array disproportionately large,
+ * the map switches to open addressing on primitive arrays.
+ * In both modes neither the lookup nor the insertion of an already known
+ * label allocates objects.
+ * The indices can be used to address primitive per-label feature arrays.
+ */
+public class LabelIndexMap
+{
+	private static final int EMPTY = 0;
+
+	/**
+	 * Labels below this are always stored densely, i.e. with at most 256 kB for the dense array.
+	 * This floor is kept small, because there may be one map per frame.
+	 */
+	private static final int MAX_UNCONDITIONAL_DENSE_LABEL = 1 << 16;
+
+	/**
+	 * Above {@link #MAX_UNCONDITIONAL_DENSE_LABEL}, the labels are stored densely
+	 * only while there are at least one in this many possible labels,
+	 * such that a few large labels do not allocate a large dense array.
+	 */
+	private static final int MAX_DENSE_SPARSITY = 4;
+
+	private int[] denseIndices; // index + 1, such that 0 means absent
+	private int[] keys;
+	private int[] indices;
+	private int[] labels;
+	private int mask;
+	private int size;
+
+	public LabelIndexMap()
+	{
+		this( 1024 );
+	}
+
+	public LabelIndexMap( int expectedNumLabels )
+	{
+		denseIndices = new int[ Math.max( expectedNumLabels, 16 ) ];
+		labels = new int[ Math.max( expectedNumLabels, 16 ) ];
+	}
+
+	/**
+	 * @return the index of the label, or -1 if the label has not been added
+	 */
+	public int get( int label )
+	{
+		// 0 marks the empty slots of the sparse mode
+		if ( label <= 0 ) return -1;
+
+		if ( denseIndices != null )
+		{
+			if ( label >= denseIndices.length ) return -1;
+			return denseIndices[ label ] - 1;
+		}
+
+		int slot = hash( label ) & mask;
+		while ( true )
+		{
+			final int key = keys[ slot ];
+			if ( key == label ) return indices[ slot ];
+			if ( key == EMPTY ) return -1;
+			slot = ( slot + 1 ) & mask;
+		}
+	}
+
+	/**
+	 * Adds the label, if it is not yet known.
+	 *
+	 * @param label
+	 *            the label
+	 * @return the index of the label, or -1 if the label is not positive and thus not added
+	 */
+	public int add( int label )
+	{
+		if ( label <= 0 ) return -1;
+
+		if ( denseIndices != null )
+		{
+			if ( label < denseIndices.length )
+			{
+				final int index = denseIndices[ label ] - 1;
+				if ( index >= 0 ) return index;
+			}
+			else if ( isDenseLabel( label ) )
+			{
+				denseIndices = Arrays.copyOf( denseIndices, getDenseLength( label ) );
+			}
+			else
+			{
+				toSparse();
+				return add( label );
+			}
+
+			final int index = appendLabel( label );
+			denseIndices[ label ] = index + 1;
+			return index;
+		}
+
+		int slot = hash( label ) & mask;
+		while ( true )
+		{
+			final int key = keys[ slot ];
+			if ( key == label ) return indices[ slot ];
+			if ( key == EMPTY ) break;
+			slot = ( slot + 1 ) & mask;
+		}
+
+		final int index = appendLabel( label );
+		keys[ slot ] = label;
+		indices[ slot ] = index;
+
+		if ( 2 * size > keys.length )
+			rehash( 2 * keys.length );
+
+		return index;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the label with the given index
+	 */
+	public int getLabel( int index )
+	{
+		return labels[ index ];
+	}
+
+	/**
+	 * @return true if the indices are stored in a dense array addressed by the label
+	 */
+	public boolean isDense()
+	{
+		return denseIndices != null;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the primitive arrays of this map
+	 */
+	public long getMemoryInBytes()
+	{
+		long numInts = labels.length;
+		if ( denseIndices != null )
+			numInts += denseIndices.length;
+		else
+			numInts += keys.length + indices.length;
+		return 4 * numInts;
+	}
+
+	/**
+	 * @return a short description of the storage mode and the memory per label, for logging
+	 */
+	public String getMemoryReport()
+	{
+		final double bytesPerLabel = size == 0 ? 0 : ( double ) getMemoryInBytes() / size;
+		return String.format( "%d labels, %s index, %.1f bytes per label", size, isDense() ? "dense" : "sparse", bytesPerLabel );
+	}
+
+	private boolean isDenseLabel( int label )
+	{
+		if ( label < MAX_UNCONDITIONAL_DENSE_LABEL ) return true;
+		return label / MAX_DENSE_SPARSITY <= size;
+	}
+
+	/**
+	 * @return the grown length of the dense array, which holds the label,
+	 *         but does not exceed what the density permits
+	 */
+	private int getDenseLength( int label )
+	{
+		final long maxLength = Math.max( MAX_UNCONDITIONAL_DENSE_LABEL, ( size + 1L ) * MAX_DENSE_SPARSITY );
+		final long length = Math.max( label + 1L, Math.min( 2L * denseIndices.length, maxLength ) );
+		return ( int ) Math.min( Integer.MAX_VALUE, length );
+	}
+
+	private int appendLabel( int label )
+	{
+		final int index = size++;
+		if ( index == labels.length )
+			labels = Arrays.copyOf( labels, 2 * labels.length );
+		labels[ index ] = label;
+		return index;
+	}
+
+	private void toSparse()
+	{
+		denseIndices = null;
+		rehash( Integer.highestOneBit( Math.max( 2 * size, 16 ) - 1 ) << 2 );
+	}
+
+	private void rehash( int capacity )
+	{
+		keys = new int[ capacity ];
+		indices = new int[ capacity ];
+		mask = capacity - 1;
+		for ( int index = 0; index < size; index++ )
+		{
+			int slot = hash( labels[ index ] ) & mask;
+			while ( keys[ slot ] != EMPTY )
+				slot = ( slot + 1 ) & mask;
+			keys[ slot ] = labels[ index ];
+			indices[ slot ] = index;
+		}
+	}
+
+	private static int hash( int label )
+	{
+		final int h = label * 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+}
@@ -2,20 +2,30 @@ package de.embl.cba.segmentationannotator.label;
 
 import ij.gui.GenericDialog;
 
+import java.util.Arrays;
+
 public class LabelMaskDisplayDialog
 {
 	private static boolean showAsBoundary = false;
 	private static int boundaryThickness = 1;
+	private static BoundaryMode boundaryMode = BoundaryMode.Sphere;
 
 	public void showDialog()
 	{
 		final GenericDialog gd = new GenericDialog( "Boundary thickness" );
 		gd.addCheckbox( "Configure Label Mask Display", showAsBoundary );
 		gd.addNumericField( "Boundary thickness [pixels]", boundaryThickness, 1 );
+		gd.addChoice( "Boundary computation", getBoundaryModeNames(), boundaryMode.toString() );
 		gd.showDialog();
 		if ( gd.wasCanceled() ) return;
 		showAsBoundary = gd.getNextBoolean();
 		boundaryThickness = (int) gd.getNextNumber();
+		boundaryMode = BoundaryMode.valueOf( gd.getNextChoice() );
+	}
+
+	private static String[] getBoundaryModeNames()
+	{
+		return Arrays.stream( BoundaryMode.values() ).map( BoundaryMode::toString ).toArray( String[]::new );
 	}
 
 	public boolean isShowAsBoundary()
@@ -27,4 +37,9 @@ public class LabelMaskDisplayDialog
 	{
 		return boundaryThickness;
 	}
+
+	public BoundaryMode getBoundaryMode()
+	{
+		return boundaryMode;
+	}
 }
@@ -0,0 +1,414 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import de.embl.cba.tables.Logger;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds lazily computed, coarser resolution levels to a label {@link Source}
+ * that has only one level, such that BDV does not sample the full resolution
+ * labels when zooming out.
+ * <p>
+ * Each level halves the size of the previous level in x and y, and in z as long as
+ * the voxels do not become more elongated along z than in x and y. The levels are computed
+ * per cell from the previous level, picking one label per block of voxels, see {@link Downsampling},
+ * such that, in contrast to averaging, every label of a coarser level is a label of the image.
+ * <p>
+ * The volatile version of the pyramid, see {@link #asVolatile(Source)}, uses the volatile
+ * version of the wrapped source for the full resolution and computes the coarser cells
+ * in the background.
+ */
+public class LabelPyramidSource< T extends NativeType< T > & RealType< T > > implements Source< T >
+{
+	public enum Downsampling
+	{
+		/**
+		 * The most frequent label of the block, including background.
+		 */
+		Mode,
+
+		/**
+		 * The most frequent non-zero label of the block; background only if the whole block is background.
+		 * Small segments stay visible at the cost of slightly enlarged segments.
+		 */
+		AnyNonZero
+	}
+
+	private static final int MIN_LEVEL_SIZE = 512;
+	private static final int MAX_NUM_LEVELS = 8;
+	private static final int MAX_CACHED_IMAGES = 16;
+	private static final int[] CELL_DIMENSIONS = { 64, 64, 64 };
+
+	private final Source< T > source;
+	private final Downsampling downsampling;
+	private final int[][] levelToFactors;
+	private final AffineTransform3D[] levelToMipmapTransform;
+	private final Map< String, RandomAccessibleInterval< T > > keyToLevel;
+	private final Map< String, RandomAccessibleInterval< ? > > keyToVolatileLevel;
+	private SharedQueue queue;
+
+	public LabelPyramidSource( Source< T > source, Downsampling downsampling )
+	{
+		this.source = source;
+		this.downsampling = downsampling;
+		this.levelToFactors = computeFactors( source );
+		this.levelToMipmapTransform = new AffineTransform3D[ levelToFactors.length ];
+		for ( int level = 0; level < levelToFactors.length; level++ )
+		{
+			final int[] f = levelToFactors[ level ];
+			levelToMipmapTransform[ level ] = new AffineTransform3D();
+			levelToMipmapTransform[ level ].set(
+					f[ 0 ], 0, 0, 0.5 * ( f[ 0 ] - 1 ),
+					0, f[ 1 ], 0, 0.5 * ( f[ 1 ] - 1 ),
+					0, 0, f[ 2 ], 0.5 * ( f[ 2 ] - 1 ) );
+		}
+		this.keyToLevel = createLruMap();
+		this.keyToVolatileLevel = createLruMap();
+	}
+
+	/**
+	 * @return a {@link SourceAndConverter} with the label pyramid, or the given one
+	 *         if its labels are already multi-resolution or too small for a pyramid
+	 */
+	public static SourceAndConverter< ? > asPyramidSourceAndConverter( SourceAndConverter< ? > sourceAndConverter, Downsampling downsampling )
+	{
+		final Source spimSource = sourceAndConverter.getSpimSource();
+		if ( spimSource.getNumMipmapLevels() > 1 || ! ( spimSource.getType() instanceof NativeType ) || spimSource.getType() instanceof Volatile )
+			return sourceAndConverter;
+
+		final LabelPyramidSource pyramid = new LabelPyramidSource( spimSource, downsampling );
+		if ( pyramid.getNumMipmapLevels() == 1 )
+			return sourceAndConverter;
+
+		Logger.info( "Label pyramid of " + spimSource.getName() + ": " + pyramid.getNumMipmapLevels() + " resolution levels." );
+
+		if ( sourceAndConverter.asVolatile() == null )
+			return new SourceAndConverter( pyramid, sourceAndConverter.getConverter() );
+
+		final SourceAndConverter volatileSourceAndConverter = new SourceAndConverter( pyramid.asVolatile( sourceAndConverter.asVolatile().getSpimSource() ), sourceAndConverter.asVolatile().getConverter() );
+		return new SourceAndConverter( pyramid, sourceAndConverter.getConverter(), volatileSourceAndConverter );
+	}
+
+	/**
+	 * @param volatileSource
+	 *            the volatile version of the wrapped source
+	 * @return the pyramid with the volatile type of the labels
+	 */
+	public < V extends Volatile< T > & NumericType< V > > Source< V > asVolatile( Source< V > volatileSource )
+	{
+		return new VolatileLabelPyramidSource<>( volatileSource );
+	}
+
+	@Override
+	public boolean isPresent( int t )
+	{
+		return source.isPresent( t );
+	}
+
+	@Override
+	public RandomAccessibleInterval< T > getSource( int t, int level )
+	{
+		if ( level == 0 ) return source.getSource( t, 0 );
+		return getLevel( t, level );
+	}
+
+	@Override
+	public RealRandomAccessible< T > getInterpolatedSource( int t, int level, Interpolation method )
+	{
+		if ( level == 0 ) return source.getInterpolatedSource( t, 0, Interpolation.NEARESTNEIGHBOR );
+		return Views.interpolate( Views.extendZero( getLevel( t, level ) ), new NearestNeighborInterpolatorFactory<>() );
+	}
+
+	@Override
+	public void getSourceTransform( int t, int level, AffineTransform3D transform )
+	{
+		source.getSourceTransform( t, 0, transform );
+		transform.concatenate( levelToMipmapTransform[ level ] );
+	}
+
+	@Override
+	public T getType()
+	{
+		return source.getType();
+	}
+
+	@Override
+	public String getName()
+	{
+		return source.getName();
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		return source.getVoxelDimensions();
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return levelToFactors.length;
+	}
+
+	private synchronized RandomAccessibleInterval< T > getLevel( int t, int level )
+	{
+		final String key = t + "-" + level;
+		RandomAccessibleInterval< T > labels = keyToLevel.get( key );
+		if ( labels == null )
+		{
+			labels = createLevel( level == 1 ? source.getSource( t, 0 ) : getLevel( t, level - 1 ), level );
+			keyToLevel.put( key, labels );
+		}
+		return labels;
+	}
+
+	private synchronized RandomAccessibleInterval< ? > getVolatileLevel( int t, int level )
+	{
+		return keyToVolatileLevel.computeIfAbsent( t + "-" + level, key -> VolatileViews.wrapAsVolatile( getLevel( t, level ), getQueue() ) );
+	}
+
+	private RandomAccessibleInterval< T > createLevel( RandomAccessibleInterval< T > previousLevel, int level )
+	{
+		final int[] relativeFactors = new int[ 3 ];
+		final long[] dimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			relativeFactors[ d ] = levelToFactors[ level ][ d ] / levelToFactors[ level - 1 ][ d ];
+			dimensions[ d ] = ( previousLevel.dimension( d ) + relativeFactors[ d ] - 1 ) / relativeFactors[ d ];
+		}
+
+		final int[] cellDimensions = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			cellDimensions[ d ] = ( int ) Math.min( dimensions[ d ], CELL_DIMENSIONS[ d ] );
+
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDimensions ) ).create(
+				dimensions,
+				source.getType().createVariable(),
+				new DownsamplingCellLoader<>( previousLevel, relativeFactors, downsampling ) );
+	}
+
+	private synchronized SharedQueue getQueue()
+	{
+		if ( queue == null )
+			queue = new SharedQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+		return queue;
+	}
+
+	/**
+	 * @return the downsampling factors of each level, relative to the full resolution
+	 */
+	private static int[][] computeFactors( Source< ? > source )
+	{
+		final long[] dimensions = source.getSource( 0, 0 ).dimensionsAsLongArray();
+		final double[] spacing = getVoxelSpacing( source );
+
+		final List< int[] > levelToFactors = new ArrayList<>();
+		int[] factors = { 1, 1, 1 };
+		levelToFactors.add( factors );
+		while ( levelToFactors.size() < MAX_NUM_LEVELS
+				&& Math.max( dimensions[ 0 ] / factors[ 0 ], dimensions[ 1 ] / factors[ 1 ] ) > MIN_LEVEL_SIZE )
+		{
+			final int[] next = { 2 * factors[ 0 ], 2 * factors[ 1 ], factors[ 2 ] };
+			// only downsample z if its voxel size does not exceed the one in xy afterwards
+			if ( dimensions[ 2 ] / factors[ 2 ] > 1 && 2 * factors[ 2 ] * spacing[ 2 ] <= next[ 0 ] * spacing[ 0 ] )
+				next[ 2 ] = 2 * factors[ 2 ];
+			levelToFactors.add( next );
+			factors = next;
+		}
+
+		return levelToFactors.toArray( new int[ 0 ][] );
+	}
+
+	private static double[] getVoxelSpacing( Source< ? > source )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		source.getSourceTransform( 0, 0, transform );
+		final double[] spacing = new double[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			for ( int row = 0; row < 3; row++ )
+				spacing[ d ] += transform.get( row, d ) * transform.get( row, d );
+		for ( int d = 0; d < 3; d++ )
+			spacing[ d ] = Math.sqrt( spacing[ d ] );
+		return spacing;
+	}
+
+	private static < V > Map< String, V > createLruMap()
+	{
+		return new LinkedHashMap< String, V >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< String, V > eldest )
+			{
+				return size() > MAX_CACHED_IMAGES;
+			}
+		};
+	}
+
+	/**
+	 * Computes one cell of a level from the blocks of voxels of the previous level.
+	 */
+	private static class DownsamplingCellLoader< T extends NativeType< T > & RealType< T > > implements CellLoader< T >
+	{
+		private final RandomAccessibleInterval< T > previousLevel;
+		private final int[] factors;
+		private final Downsampling downsampling;
+
+		DownsamplingCellLoader( RandomAccessibleInterval< T > previousLevel, int[] factors, Downsampling downsampling )
+		{
+			this.previousLevel = previousLevel;
+			this.factors = factors;
+			this.downsampling = downsampling;
+		}
+
+		@Override
+		public void load( SingleCellArrayImg< T, ? > cell )
+		{
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+			final int[] size = new int[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = cell.min( d ) * factors[ d ];
+				max[ d ] = ( cell.max( d ) + 1 ) * factors[ d ] - 1;
+				size[ d ] = ( int ) ( max[ d ] - min[ d ] + 1 );
+			}
+
+			final long[] block = new long[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			final Cursor< T > in = Views.flatIterable( Views.interval( Views.extendBorder( previousLevel ), new FinalInterval( min, max ) ) ).cursor();
+			for ( int i = 0; i < block.length; i++ )
+				block[ i ] = ( long ) in.next().getRealDouble();
+
+			final long[] values = new long[ factors[ 0 ] * factors[ 1 ] * factors[ 2 ] ];
+			final Cursor< T > out = Views.flatIterable( cell ).cursor();
+			for ( int z = 0; z < cell.dimension( 2 ); z++ )
+				for ( int y = 0; y < cell.dimension( 1 ); y++ )
+					for ( int x = 0; x < cell.dimension( 0 ); x++ )
+					{
+						int n = 0;
+						for ( int dz = 0; dz < factors[ 2 ]; dz++ )
+							for ( int dy = 0; dy < factors[ 1 ]; dy++ )
+								for ( int dx = 0; dx < factors[ 0 ]; dx++ )
+									values[ n++ ] = block[ ( ( z * factors[ 2 ] + dz ) * size[ 1 ] + y * factors[ 1 ] + dy ) * size[ 0 ] + x * factors[ 0 ] + dx ];
+
+						out.next().setReal( pick( values, n ) );
+					}
+		}
+
+		/**
+		 * @return the most frequent value, preferring non-zero values in case of ties
+		 */
+		private long pick( long[] values, int n )
+		{
+			long best = 0;
+			int bestCount = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				final long value = values[ i ];
+				if ( value == 0 && downsampling == Downsampling.AnyNonZero ) continue;
+
+				int count = 0;
+				for ( int j = 0; j < n; j++ )
+					if ( values[ j ] == value ) count++;
+
+				if ( count > bestCount || ( count == bestCount && best == 0 ) )
+				{
+					best = value;
+					bestCount = count;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The pyramid with the volatile type of the labels.
+	 */
+	private class VolatileLabelPyramidSource< V extends Volatile< T > & NumericType< V > > implements Source< V >
+	{
+		private final Source< V > volatileSource;
+
+		VolatileLabelPyramidSource( Source< V > volatileSource )
+		{
+			this.volatileSource = volatileSource;
+		}
+
+		@Override
+		public boolean isPresent( int t )
+		{
+			return volatileSource.isPresent( t );
+		}
+
+		@Override
+		public RandomAccessibleInterval< V > getSource( int t, int level )
+		{
+			if ( level == 0 ) return volatileSource.getSource( t, 0 );
+			return ( RandomAccessibleInterval< V > ) getVolatileLevel( t, level );
+		}
+
+		@Override
+		public RealRandomAccessible< V > getInterpolatedSource( int t, int level, Interpolation method )
+		{
+			if ( level == 0 ) return volatileSource.getInterpolatedSource( t, 0, Interpolation.NEARESTNEIGHBOR );
+
+			// background outside of the image, which is valid, such that BDV does not wait for it
+			final V background = volatileSource.getType().createVariable();
+			background.setZero();
+			background.setValid( true );
+			return Views.interpolate( Views.extendValue( getSource( t, level ), background ), new NearestNeighborInterpolatorFactory<>() );
+		}
+
+		@Override
+		public void getSourceTransform( int t, int level, AffineTransform3D transform )
+		{
+			LabelPyramidSource.this.getSourceTransform( t, level, transform );
+		}
+
+		@Override
+		public V getType()
+		{
+			return volatileSource.getType();
+		}
+
+		@Override
+		public String getName()
+		{
+			return volatileSource.getName();
+		}
+
+		@Override
+		public VoxelDimensions getVoxelDimensions()
+		{
+			return volatileSource.getVoxelDimensions();
+		}
+
+		@Override
+		public int getNumMipmapLevels()
+		{
+			return LabelPyramidSource.this.getNumMipmapLevels();
+		}
+	}
+}
@@ -4,15 +4,18 @@ import bdv.util.DefaultInterpolators;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
 import de.embl.cba.lazyalgorithm.RandomAccessibleIntervalFilter;
 import de.embl.cba.lazyalgorithm.converter.NeighborhoodNonZeroBoundariesConverter2;
 import de.embl.cba.lazyalgorithm.view.NeighborhoodViews;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
 import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
@@ -34,23 +37,57 @@ public class LabelSource< T extends NumericType< T > & RealType< T > > implement
 {
 	protected final Source< T > source;
 	private final DefaultInterpolators< T > interpolators;
-	private boolean showAsBoundaries;
-	private int boundaryWidth;
+
+	/**
+	 * The display settings are replaced as a whole, such that the render threads
+	 * always see a consistent combination without locking.
+	 */
+	private volatile BoundarySettings boundarySettings = new BoundarySettings( false, 0, BoundaryMode.Sphere );
+
+	/**
+	 * Computes the boundaries from the non-volatile labels, or null
+	 * to compute them on the fly.
+	 */
+	private final CachedBoundaries cachedBoundaries;
 
 	public LabelSource( final Source< T > source )
+	{
+		this( source, createCachedBoundaries( source ) );
+	}
+
+	/**
+	 * @param cachedBoundaries
+	 *            the boundaries of the non-volatile version of the source,
+	 *            which can be shared with the volatile version, or null
+	 */
+	protected LabelSource( final Source< T > source, final CachedBoundaries cachedBoundaries )
 	{
 		this.source = source;
 		this.interpolators = new DefaultInterpolators();
+		this.cachedBoundaries = cachedBoundaries;
 	}
 
 	public void showAsBoundary( boolean showAsBoundaries, int boundaryWidth )
 	{
-		this.showAsBoundaries = showAsBoundaries;
-		this.boundaryWidth = boundaryWidth;
+		showAsBoundary( showAsBoundaries, boundaryWidth, BoundaryMode.Sphere );
+	}
+
+	/**
+	 * @param mode
+	 *            how the boundaries are computed; only applies if the boundaries are cached,
+	 *            i.e. if the labels are available as a non-volatile native type
+	 */
+	public void showAsBoundary( boolean showAsBoundaries, int boundaryWidth, BoundaryMode mode )
+	{
+		boundarySettings = new BoundarySettings( showAsBoundaries, boundaryWidth, mode );
 	}
 
+	/**
+	 * Not synchronized, because BDV calls this from all render threads;
+	 * the wrapped sources provide thread-safe transforms.
+	 */
 	@Override
-	public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
 	{
 		source.getSourceTransform( t, level, transform );
 	}
@@ -64,31 +101,63 @@ public class LabelSource< T extends NumericType< T > & RealType< T > > implement
 	@Override
 	public RandomAccessibleInterval< T > getSource( final int t, final int level )
 	{
-		RandomAccessibleInterval< T > rai = source.getSource( t, level );
+		RenderMetrics.countSourceRequest();
 
-		if ( showAsBoundaries )
+		final BoundarySettings settings = boundarySettings;
+		if ( settings.showAsBoundaries )
 		{
-			NeighborhoodNonZeroBoundariesConverter2< T > boundariesConverter = new NeighborhoodNonZeroBoundariesConverter2< T >( rai );
-			RandomAccessibleInterval boundaries = NeighborhoodViews.neighborhoodConvertedView(
-					rai,
-					boundariesConverter,
-					new HyperSphereShape( boundaryWidth ) );
+			RandomAccessibleInterval boundaries = getBoundaries( t, level, settings );
+
+			if ( RenderMetrics.isEnabled() )
+				return new TimedRandomAccessibleInterval<>( boundaries );
 
 			return boundaries;
 		}
 		else
 		{
-			return rai;
+			// BDV's hierarchy projector itself falls back to coarser levels for invalid voxels
+			return source.getSource( t, level );
+		}
+	}
+
+	private RandomAccessibleInterval getBoundaries( final int t, final int level, final BoundarySettings settings )
+	{
+		if ( cachedBoundaries != null )
+		{
+			if ( source.getType() instanceof Volatile )
+				return cachedBoundaries.getVolatileBoundaries( t, level, settings.boundaryWidth, settings.mode );
+			else
+				return cachedBoundaries.getBoundaries( t, level, settings.boundaryWidth, settings.mode );
 		}
+
+		final RandomAccessibleInterval< T > rai = getFallbackLabels( t, level );
+		NeighborhoodNonZeroBoundariesConverter2< T > boundariesConverter = new NeighborhoodNonZeroBoundariesConverter2< T >( rai );
+		return NeighborhoodViews.neighborhoodConvertedView(
+				rai,
+				boundariesConverter,
+				new HyperSphereShape( settings.boundaryWidth ) );
+	}
+
+	/**
+	 * @return the labels of the wrapped source, where, for volatile sources, the voxels
+	 *         that are not loaded yet fall back to the labels of coarser resolution levels,
+	 *         such that the neighborhoods of the boundary computation see plausible labels
+	 */
+	private RandomAccessibleInterval< T > getFallbackLabels( final int t, final int level )
+	{
+		if ( VolatileFallbackRandomAccessibleInterval.isApplicable( source, level ) )
+			return new VolatileFallbackRandomAccessibleInterval<>( source, t, level );
+		else
+			return source.getSource( t, level );
 	}
 
 	@Override
 	public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method )
 	{
-		if ( showAsBoundaries  )
+		if ( boundarySettings.showAsBoundaries )
 		{
 			RandomAccessibleInterval< T > rai = getSource( t, level );
-			RealRandomAccessible< T > interpolate = Views.interpolate( Views.extendZero( rai ), interpolators.get( Interpolation.NEARESTNEIGHBOR ) );
+			RealRandomAccessible< T > interpolate = Views.interpolate( Views.extendValue( rai, getOutOfBoundsValue() ), interpolators.get( Interpolation.NEARESTNEIGHBOR ) );
 			return interpolate;
 		}
 		else
@@ -97,6 +166,19 @@ public class LabelSource< T extends NumericType< T > & RealType< T > > implement
 		}
 	}
 
+	/**
+	 * @return background, which for volatile sources is marked as valid,
+	 *         such that BDV does not wait for it to be loaded
+	 */
+	private T getOutOfBoundsValue()
+	{
+		final T zero = source.getType().createVariable();
+		zero.setZero();
+		if ( zero instanceof Volatile )
+			( ( Volatile< ? > ) zero ).setValid( true );
+		return zero;
+	}
+
 	@Override
 	public T getType()
 	{
@@ -128,11 +210,37 @@ public class LabelSource< T extends NumericType< T > & RealType< T > > implement
 
 	public static < R extends NumericType< R > & RealType< R > > SourceAndConverter< R > asLabelSourceAndConverter( SourceAndConverter< R > source, Converter< RealType, ARGBType > converter )
 	{
-		LabelSource< R > labelVolatileSource = new LabelSource( source.asVolatile().getSpimSource() );
+		final CachedBoundaries cachedBoundaries = createCachedBoundaries( source.getSpimSource() );
+		LabelSource< R > labelVolatileSource = new LabelSource( source.asVolatile().getSpimSource(), cachedBoundaries );
 		SourceAndConverter volatileSourceAndConverter = new SourceAndConverter( labelVolatileSource , converter );
-		LabelSource< R > labelSource = new LabelSource( source.getSpimSource() );
+		LabelSource< R > labelSource = new LabelSource( source.getSpimSource(), cachedBoundaries );
 		SourceAndConverter sourceAndConverter = new SourceAndConverter( labelSource, converter, volatileSourceAndConverter );
 		return sourceAndConverter;
 	}
 
+	/**
+	 * @return the cache, or null if the labels are volatile or not of a native type,
+	 *         in which case the boundaries are computed on the fly
+	 */
+	private static CachedBoundaries createCachedBoundaries( Source< ? > source )
+	{
+		if ( source.getType() instanceof Volatile || ! ( source.getType() instanceof NativeType ) )
+			return null;
+
+		return new CachedBoundaries( source );
+	}
+
+	private static class BoundarySettings
+	{
+		final boolean showAsBoundaries;
+		final int boundaryWidth;
+		final BoundaryMode mode;
+
+		BoundarySettings( boolean showAsBoundaries, int boundaryWidth, BoundaryMode mode )
+		{
+			this.showAsBoundaries = showAsBoundaries;
+			this.boundaryWidth = boundaryWidth;
+			this.mode = mode;
+		}
+	}
 }
@@ -0,0 +1,33 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.Logger;
+
+/**
+ * Logs the progress of a {@link FeatureComputationJob} in fixed intervals,
+ * for use without a user interface.
+ */
+public class LoggingProgressListener implements FeatureComputationJob.ProgressListener
+{
+	private final long intervalMillis;
+	private long lastLogMillis;
+
+	public LoggingProgressListener()
+	{
+		this( 10000 );
+	}
+
+	public LoggingProgressListener( long intervalMillis )
+	{
+		this.intervalMillis = intervalMillis;
+	}
+
+	@Override
+	public synchronized void progress( FeatureComputationJob job )
+	{
+		final long now = System.currentTimeMillis();
+		if ( ! job.isFinished() && now - lastLogMillis < intervalMillis ) return;
+
+		lastLogMillis = now;
+		Logger.info( job.getSummary() );
+	}
+}
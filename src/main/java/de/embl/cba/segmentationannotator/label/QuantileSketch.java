@@ -0,0 +1,213 @@
+package de.embl.cba.segmentationannotator.label;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable, bounded-memory sketch of a distribution of values, from which
+ * approximate quantiles can be read.
+ * <p>
+ * This is a variant of the KLL sketch (Karnin, Lang and Liberty, 2016):
+ * the values are kept in a hierarchy of levels, where a value in level h stands
+ * for 2^h of the added values. If a level exceeds its capacity, it is sorted and
+ * every other value is promoted to the next level. The capacities decrease
+ * geometrically from the top level downwards, such that the total number of
+ * stored values is bounded by about 3k, independent of the number of added values.
+ * The rank error is in the order of 1.7 / k on average over the quantiles;
+ * for single quantiles, it can be a few times larger, but stays below 5 / k,
+ * see the QuantileSketchTest.
+ * <p>
+ * Which of the two halves is promoted alternates deterministically,
+ * such that the results are reproducible.
+ * <p>
+ * A sketch must only be used by one thread.
+ */
+public class QuantileSketch
+{
+	public static final int DEFAULT_K = 200;
+
+	private static final double CAPACITY_DECAY = 2.0 / 3.0;
+	private static final int MIN_LEVEL_CAPACITY = 2;
+
+	private final int k;
+	private float[][] levels;
+	private int[] levelSizes;
+	private int numLevels;
+	private long count;
+	private boolean promoteOdd;
+
+	public QuantileSketch()
+	{
+		this( DEFAULT_K );
+	}
+
+	public QuantileSketch( int k )
+	{
+		this.k = k;
+		levels = new float[ 4 ][];
+		levelSizes = new int[ 4 ];
+		levels[ 0 ] = new float[ 8 ];
+		numLevels = 1;
+	}
+
+	public void add( double value )
+	{
+		append( 0, ( float ) value );
+		count++;
+		if ( levelSizes[ 0 ] >= capacity( 0 ) )
+			compress();
+	}
+
+	public void merge( QuantileSketch other )
+	{
+		while ( numLevels < other.numLevels )
+			addLevel();
+
+		for ( int h = 0; h < other.numLevels; h++ )
+			for ( int i = 0; i < other.levelSizes[ h ]; i++ )
+				append( h, other.levels[ h ][ i ] );
+
+		count += other.count;
+		compress();
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @param quantile
+	 *            in [0,1], e.g. 0.5 for the median
+	 * @return the approximate quantile, or NaN if no value has been added
+	 */
+	public double getQuantile( double quantile )
+	{
+		return getQuantiles( new double[]{ quantile } )[ 0 ];
+	}
+
+	/**
+	 * Computes several quantiles with one sort of the stored values.
+	 *
+	 * @param quantiles
+	 *            in [0,1] and in ascending order
+	 */
+	public double[] getQuantiles( double[] quantiles )
+	{
+		final double[] values = new double[ quantiles.length ];
+		if ( count == 0 )
+		{
+			Arrays.fill( values, Double.NaN );
+			return values;
+		}
+
+		// sortable float bits in the upper, level in the lower bits
+		int numItems = 0;
+		for ( int h = 0; h < numLevels; h++ )
+			numItems += levelSizes[ h ];
+		final long[] items = new long[ numItems ];
+		long totalWeight = 0;
+		for ( int h = 0, i = 0; h < numLevels; h++ )
+		{
+			for ( int j = 0; j < levelSizes[ h ]; j++ )
+				items[ i++ ] = ( ( long ) toSortableBits( levels[ h ][ j ] ) << 8 ) | h;
+			totalWeight += ( long ) levelSizes[ h ] << h;
+		}
+		Arrays.sort( items );
+
+		long cumulativeWeight = 0;
+		for ( int i = 0, q = 0; i < numItems && q < quantiles.length; i++ )
+		{
+			cumulativeWeight += 1L << ( items[ i ] & 0xFF );
+			final float value = fromSortableBits( ( int ) ( items[ i ] >> 8 ) );
+			while ( q < quantiles.length && cumulativeWeight >= quantiles[ q ] * totalWeight )
+				values[ q++ ] = value;
+		}
+
+		return values;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the stored values
+	 */
+	public long getMemoryInBytes()
+	{
+		long bytes = 0;
+		for ( int h = 0; h < numLevels; h++ )
+			bytes += 4L * levels[ h ].length;
+		return bytes;
+	}
+
+	private int capacity( int level )
+	{
+		final int depth = numLevels - 1 - level;
+		return Math.max( MIN_LEVEL_CAPACITY, ( int ) Math.ceil( k * Math.pow( CAPACITY_DECAY, depth ) ) );
+	}
+
+	private void compress()
+	{
+		boolean compacted = true;
+		while ( compacted )
+		{
+			compacted = false;
+			for ( int h = 0; h < numLevels; h++ )
+			{
+				if ( levelSizes[ h ] >= capacity( h ) )
+				{
+					compact( h );
+					compacted = true;
+				}
+			}
+		}
+	}
+
+	private void compact( int level )
+	{
+		if ( level + 1 == numLevels )
+			addLevel();
+
+		final float[] values = levels[ level ];
+		final int size = levelSizes[ level ];
+		Arrays.sort( values, 0, size );
+
+		// with an odd number of values, the smallest stays in this level
+		final int first = ( size % 2 ) + ( promoteOdd ? 1 : 0 );
+		promoteOdd = ! promoteOdd;
+		for ( int i = first; i < size; i += 2 )
+			append( level + 1, values[ i ] );
+
+		levelSizes[ level ] = size % 2;
+
+		// the lower levels shrink whenever a level is added on top
+		if ( values.length > 2 * capacity( level ) )
+			levels[ level ] = Arrays.copyOf( values, capacity( level ) );
+	}
+
+	private void addLevel()
+	{
+		if ( numLevels == levels.length )
+		{
+			levels = Arrays.copyOf( levels, 2 * levels.length );
+			levelSizes = Arrays.copyOf( levelSizes, 2 * levelSizes.length );
+		}
+		levels[ numLevels ] = new float[ 8 ];
+		numLevels++;
+	}
+
+	private void append( int level, float value )
+	{
+		if ( levelSizes[ level ] == levels[ level ].length )
+			levels[ level ] = Arrays.copyOf( levels[ level ], Math.max( 2 * levels[ level ].length, 8 ) );
+		levels[ level ][ levelSizes[ level ]++ ] = value;
+	}
+
+	private static int toSortableBits( float value )
+	{
+		final int bits = Float.floatToIntBits( value );
+		return bits ^ ( ( bits >> 31 ) & 0x7FFFFFFF );
+	}
+
+	private static float fromSortableBits( int bits )
+	{
+		return Float.intBitsToFloat( bits ^ ( ( bits >> 31 ) & 0x7FFFFFFF ) );
+	}
+}
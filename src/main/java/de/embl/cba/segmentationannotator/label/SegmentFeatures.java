@@ -7,5 +7,23 @@ public class SegmentFeatures
 	public double anchorX;
 	public double anchorY;
 	public double anchorZ;
-	public double meanIntensity;
+
+	// calibrated bounding box
+	public double bbMinX;
+	public double bbMinY;
+	public double bbMinZ;
+	public double bbMaxX;
+	public double bbMaxY;
+	public double bbMaxZ;
+
+	// one entry per intensity channel
+	public double[] meanIntensity;
+	public double[] sumIntensity;
+	public double[] minIntensity;
+	public double[] maxIntensity;
+	public double[] varianceIntensity;
+
+	// approximate quantiles, one entry per intensity channel, or null if not computed
+	public double[] medianIntensity;
+	public double[] p95Intensity;
 }
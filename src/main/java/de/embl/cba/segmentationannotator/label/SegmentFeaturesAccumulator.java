@@ -0,0 +1,299 @@
+package de.embl.cba.segmentationannotator.label;
+
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the voxel statistics of all segments in a part of a label image
+ * into primitive per-label arrays.
+ * <p>
+ * The intensity statistics of each channel are accumulated with Welford's
+ * online algorithm, such that mean and variance are numerically stable
+ * and can be merged without a second pass over the data.
+ * <p>
+ * Optionally, the intensities of each segment and channel are in addition
+ * added to a {@link QuantileSketch}, from which median and 95th percentile are read.
+ * <p>
+ * One accumulator must only be used by one thread.
+ * Accumulators of different parts of the image can be combined with {@link #merge}.
+ */
+public class SegmentFeaturesAccumulator
+{
+	private static final double[] QUANTILES = new double[]{ 0.5, 0.95 };
+
+	private final LabelIndexMap labelToIndex;
+	private final int numChannels;
+	private long[] numPixels;
+	private long[] sumX;
+	private long[] sumY;
+	private long[] sumZ;
+	private int[] minX;
+	private int[] minY;
+	private int[] minZ;
+	private int[] maxX;
+	private int[] maxY;
+	private int[] maxZ;
+
+	// [ channel ][ label index ]
+	private double[][] meanIntensity;
+	private double[][] m2Intensity;
+	private double[][] sumIntensity;
+	private double[][] minIntensity;
+	private double[][] maxIntensity;
+	private QuantileSketch[][] intensitySketches; // null if the quantiles are not computed
+
+	private int lastLabel;
+	private int lastIndex = -1;
+
+	public SegmentFeaturesAccumulator()
+	{
+		this( 0 );
+	}
+
+	public SegmentFeaturesAccumulator( int numChannels )
+	{
+		this( numChannels, false );
+	}
+
+	public SegmentFeaturesAccumulator( int numChannels, boolean computeQuantiles )
+	{
+		this.numChannels = numChannels;
+		labelToIndex = new LabelIndexMap();
+		meanIntensity = new double[ numChannels ][];
+		m2Intensity = new double[ numChannels ][];
+		sumIntensity = new double[ numChannels ][];
+		minIntensity = new double[ numChannels ][];
+		maxIntensity = new double[ numChannels ][];
+		if ( computeQuantiles )
+			intensitySketches = new QuantileSketch[ numChannels ][];
+		allocate( 1024 );
+	}
+
+	/**
+	 * Adds one voxel of a segment.
+	 *
+	 * @return the index of the label, to be used for {@link #addIntensity}
+	 */
+	public int add( int label, int x, int y, int z )
+	{
+		final int index = indexOf( label );
+		numPixels[ index ]++;
+		sumX[ index ] += x;
+		sumY[ index ] += y;
+		sumZ[ index ] += z;
+		if ( x < minX[ index ] ) minX[ index ] = x;
+		if ( y < minY[ index ] ) minY[ index ] = y;
+		if ( z < minZ[ index ] ) minZ[ index ] = z;
+		if ( x > maxX[ index ] ) maxX[ index ] = x;
+		if ( y > maxY[ index ] ) maxY[ index ] = y;
+		if ( z > maxZ[ index ] ) maxZ[ index ] = z;
+		return index;
+	}
+
+	/**
+	 * Adds the intensity of the voxel that has just been added with {@link #add}.
+	 */
+	public void addIntensity( int index, int channel, double value )
+	{
+		final double[] mean = meanIntensity[ channel ];
+		final double delta = value - mean[ index ];
+		mean[ index ] += delta / numPixels[ index ];
+		m2Intensity[ channel ][ index ] += delta * ( value - mean[ index ] );
+		sumIntensity[ channel ][ index ] += value;
+		if ( value < minIntensity[ channel ][ index ] ) minIntensity[ channel ][ index ] = value;
+		if ( value > maxIntensity[ channel ][ index ] ) maxIntensity[ channel ][ index ] = value;
+		if ( intensitySketches != null ) getSketch( channel, index ).add( value );
+	}
+
+	public void merge( SegmentFeaturesAccumulator other )
+	{
+		for ( int otherIndex = 0; otherIndex < other.labelToIndex.size(); otherIndex++ )
+		{
+			final int index = indexOf( other.labelToIndex.getLabel( otherIndex ) );
+
+			final long n = numPixels[ index ];
+			final long otherN = other.numPixels[ otherIndex ];
+			final long mergedN = n + otherN;
+
+			for ( int c = 0; c < numChannels; c++ )
+			{
+				final double delta = other.meanIntensity[ c ][ otherIndex ] - meanIntensity[ c ][ index ];
+				meanIntensity[ c ][ index ] += delta * otherN / mergedN;
+				m2Intensity[ c ][ index ] += other.m2Intensity[ c ][ otherIndex ] + delta * delta * n * otherN / mergedN;
+				sumIntensity[ c ][ index ] += other.sumIntensity[ c ][ otherIndex ];
+				minIntensity[ c ][ index ] = Math.min( minIntensity[ c ][ index ], other.minIntensity[ c ][ otherIndex ] );
+				maxIntensity[ c ][ index ] = Math.max( maxIntensity[ c ][ index ], other.maxIntensity[ c ][ otherIndex ] );
+				if ( intensitySketches != null && other.intensitySketches != null && other.intensitySketches[ c ][ otherIndex ] != null )
+					getSketch( c, index ).merge( other.intensitySketches[ c ][ otherIndex ] );
+			}
+
+			numPixels[ index ] = mergedN;
+			sumX[ index ] += other.sumX[ otherIndex ];
+			sumY[ index ] += other.sumY[ otherIndex ];
+			sumZ[ index ] += other.sumZ[ otherIndex ];
+			minX[ index ] = Math.min( minX[ index ], other.minX[ otherIndex ] );
+			minY[ index ] = Math.min( minY[ index ], other.minY[ otherIndex ] );
+			minZ[ index ] = Math.min( minZ[ index ], other.minZ[ otherIndex ] );
+			maxX[ index ] = Math.max( maxX[ index ], other.maxX[ otherIndex ] );
+			maxY[ index ] = Math.max( maxY[ index ], other.maxY[ otherIndex ] );
+			maxZ[ index ] = Math.max( maxZ[ index ], other.maxZ[ otherIndex ] );
+		}
+	}
+
+	public int getNumLabels()
+	{
+		return labelToIndex.size();
+	}
+
+	/**
+	 * @return the number of bytes allocated for the label index and the per-label arrays
+	 */
+	public long getMemoryInBytes()
+	{
+		final long bytesPerLabel = 4 * 8 + 6 * 4 + numChannels * 5 * 8;
+		long bytes = labelToIndex.getMemoryInBytes() + bytesPerLabel * numPixels.length;
+		if ( intensitySketches != null )
+			for ( int c = 0; c < numChannels; c++ )
+				for ( QuantileSketch sketch : intensitySketches[ c ] )
+					if ( sketch != null ) bytes += sketch.getMemoryInBytes();
+		return bytes;
+	}
+
+	/**
+	 * @return a short description of the label index and the memory per segment, for logging
+	 */
+	public String getMemoryReport()
+	{
+		final double bytesPerSegment = getNumLabels() == 0 ? 0 : ( double ) getMemoryInBytes() / getNumLabels();
+		return String.format( "%s; %.1f bytes per segment including the features", labelToIndex.getMemoryReport(), bytesPerSegment );
+	}
+
+	public Map< Integer, SegmentFeatures > getFeatures( Calibration calibration )
+	{
+		final HashMap< Integer, SegmentFeatures > labelToFeatures = new HashMap<>();
+
+		for ( int index = 0; index < labelToIndex.size(); index++ )
+		{
+			final SegmentFeatures segmentFeatures = new SegmentFeatures();
+			segmentFeatures.numPixels = ( int ) numPixels[ index ];
+			segmentFeatures.anchorX = sumX[ index ] * calibration.pixelWidth / numPixels[ index ];
+			segmentFeatures.anchorY = sumY[ index ] * calibration.pixelHeight / numPixels[ index ];
+			segmentFeatures.anchorZ = sumZ[ index ] * calibration.pixelDepth / numPixels[ index ];
+			segmentFeatures.volume = numPixels[ index ] * calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+			segmentFeatures.bbMinX = minX[ index ] * calibration.pixelWidth;
+			segmentFeatures.bbMinY = minY[ index ] * calibration.pixelHeight;
+			segmentFeatures.bbMinZ = minZ[ index ] * calibration.pixelDepth;
+			segmentFeatures.bbMaxX = maxX[ index ] * calibration.pixelWidth;
+			segmentFeatures.bbMaxY = maxY[ index ] * calibration.pixelHeight;
+			segmentFeatures.bbMaxZ = maxZ[ index ] * calibration.pixelDepth;
+
+			segmentFeatures.meanIntensity = new double[ numChannels ];
+			segmentFeatures.sumIntensity = new double[ numChannels ];
+			segmentFeatures.minIntensity = new double[ numChannels ];
+			segmentFeatures.maxIntensity = new double[ numChannels ];
+			segmentFeatures.varianceIntensity = new double[ numChannels ];
+			if ( intensitySketches != null )
+			{
+				segmentFeatures.medianIntensity = new double[ numChannels ];
+				segmentFeatures.p95Intensity = new double[ numChannels ];
+			}
+			for ( int c = 0; c < numChannels; c++ )
+			{
+				segmentFeatures.meanIntensity[ c ] = meanIntensity[ c ][ index ];
+				segmentFeatures.sumIntensity[ c ] = sumIntensity[ c ][ index ];
+				segmentFeatures.minIntensity[ c ] = minIntensity[ c ][ index ];
+				segmentFeatures.maxIntensity[ c ] = maxIntensity[ c ][ index ];
+				// sample variance
+				segmentFeatures.varianceIntensity[ c ] = numPixels[ index ] > 1 ? m2Intensity[ c ][ index ] / ( numPixels[ index ] - 1 ) : 0;
+				if ( intensitySketches != null )
+				{
+					final double[] quantiles = getSketch( c, index ).getQuantiles( QUANTILES );
+					segmentFeatures.medianIntensity[ c ] = quantiles[ 0 ];
+					segmentFeatures.p95Intensity[ c ] = quantiles[ 1 ];
+				}
+			}
+
+			labelToFeatures.put( labelToIndex.getLabel( index ), segmentFeatures );
+		}
+
+		return labelToFeatures;
+	}
+
+	private int indexOf( int label )
+	{
+		// neighbouring voxels mostly belong to the same segment
+		if ( label == lastLabel && lastIndex >= 0 ) return lastIndex;
+
+		final int index = labelToIndex.add( label );
+		if ( index == numPixels.length )
+			allocate( 2 * numPixels.length );
+
+		lastLabel = label;
+		lastIndex = index;
+		return index;
+	}
+
+	private void allocate( int capacity )
+	{
+		final int previousCapacity = numPixels == null ? 0 : numPixels.length;
+
+		numPixels = grow( numPixels, capacity );
+		sumX = grow( sumX, capacity );
+		sumY = grow( sumY, capacity );
+		sumZ = grow( sumZ, capacity );
+		minX = grow( minX, capacity, previousCapacity, Integer.MAX_VALUE );
+		minY = grow( minY, capacity, previousCapacity, Integer.MAX_VALUE );
+		minZ = grow( minZ, capacity, previousCapacity, Integer.MAX_VALUE );
+		maxX = grow( maxX, capacity, previousCapacity, Integer.MIN_VALUE );
+		maxY = grow( maxY, capacity, previousCapacity, Integer.MIN_VALUE );
+		maxZ = grow( maxZ, capacity, previousCapacity, Integer.MIN_VALUE );
+
+		for ( int c = 0; c < numChannels; c++ )
+		{
+			meanIntensity[ c ] = grow( meanIntensity[ c ], capacity );
+			m2Intensity[ c ] = grow( m2Intensity[ c ], capacity );
+			sumIntensity[ c ] = grow( sumIntensity[ c ], capacity );
+			minIntensity[ c ] = grow( minIntensity[ c ], capacity );
+			maxIntensity[ c ] = grow( maxIntensity[ c ], capacity );
+			Arrays.fill( minIntensity[ c ], previousCapacity, capacity, Double.POSITIVE_INFINITY );
+			Arrays.fill( maxIntensity[ c ], previousCapacity, capacity, Double.NEGATIVE_INFINITY );
+			if ( intensitySketches != null )
+				intensitySketches[ c ] = intensitySketches[ c ] == null ? new QuantileSketch[ capacity ] : Arrays.copyOf( intensitySketches[ c ], capacity );
+		}
+	}
+
+	/**
+	 * The sketches are only created on demand, because most
+	 * of the per-label arrays are over-allocated.
+	 */
+	private QuantileSketch getSketch( int channel, int index )
+	{
+		QuantileSketch sketch = intensitySketches[ channel ][ index ];
+		if ( sketch == null )
+		{
+			sketch = new QuantileSketch();
+			intensitySketches[ channel ][ index ] = sketch;
+		}
+		return sketch;
+	}
+
+	private static long[] grow( long[] array, int capacity )
+	{
+		return array == null ? new long[ capacity ] : Arrays.copyOf( array, capacity );
+	}
+
+	private static int[] grow( int[] array, int capacity, int previousCapacity, int initialValue )
+	{
+		final int[] grown = array == null ? new int[ capacity ] : Arrays.copyOf( array, capacity );
+		Arrays.fill( grown, previousCapacity, capacity, initialValue );
+		return grown;
+	}
+
+	private static double[] grow( double[] array, int capacity )
+	{
+		return array == null ? new double[ capacity ] : Arrays.copyOf( array, capacity );
+	}
+}
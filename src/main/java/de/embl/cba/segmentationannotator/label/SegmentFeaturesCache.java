@@ -0,0 +1,361 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.Logger;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Persists the results of the {@link LabelAnalyzer} in a user cache directory,
+ * such that reopening the same label image does not recompute the features.
+ * <p>
+ * The cache file name is derived from the image path and dimensions.
+ * Inside the file, a hash of the pixel contents and calibration of the label
+ * and intensity images is stored; the features are only reused if this hash
+ * matches, otherwise they are recomputed and the file is overwritten.
+ * <p>
+ * The features are stored column by column in a binary format,
+ * which can be read back with bulk copies.
+ */
+public class SegmentFeaturesCache
+{
+	public static final int MAGIC = 0x53454746; // "SEGF"
+	public static final int FORMAT_VERSION = 2;
+
+	private static final int NUM_SCALAR_COLUMNS = 10;
+	private static final int NUM_INTENSITY_COLUMNS = 5;
+	private static final int NUM_QUANTILE_COLUMNS = 2;
+
+	private static File cacheDirectory = new File( System.getProperty( "user.home" ), ".segmentation-annotator" + File.separator + "feature-cache" );
+
+	public static void setCacheDirectory( File directory )
+	{
+		cacheDirectory = directory;
+	}
+
+	public static File getCacheDirectory()
+	{
+		return cacheDirectory;
+	}
+
+	/**
+	 * Returns the cached features of the label image, or computes them with
+	 * {@link LabelAnalyzer#analyzeLabels(ImagePlus, ImagePlus[])} and caches them.
+	 */
+	public static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities )
+	{
+		return analyzeLabels( labels, intensities, false );
+	}
+
+	/**
+	 * As {@link #analyzeLabels(ImagePlus, ImagePlus[])}, optionally including the intensity quantiles.
+	 * Cached features without quantiles are recomputed if the quantiles are requested.
+	 */
+	public static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities, boolean computeQuantiles )
+	{
+		return analyzeLabels( labels, intensities, computeQuantiles, new FeatureComputationJob( "Label analysis of " + labels.getTitle() ) );
+	}
+
+	/**
+	 * As {@link #analyzeLabels(ImagePlus, ImagePlus[], boolean)}, reporting the progress
+	 * of the computation, if the features are not cached, to the job.
+	 */
+	public static Map< Integer, Map< Integer, SegmentFeatures > > analyzeLabels( ImagePlus labels, ImagePlus[] intensities, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		long start = System.currentTimeMillis();
+		final long contentHash = contentHash( labels, intensities );
+		final File cacheFile = getCacheFile( labels, intensities );
+
+		if ( cacheFile.exists() )
+		{
+			try
+			{
+				final Map< Integer, Map< Integer, SegmentFeatures > > features = read( cacheFile, contentHash, intensities.length, computeQuantiles );
+				if ( features != null )
+				{
+					Logger.info( "Loaded segment features of " + labels.getTitle() + " from " + cacheFile + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+					return features;
+				}
+			}
+			catch ( IOException | RuntimeException e )
+			{
+				// a truncated or otherwise corrupt file is treated as a cache miss
+				Logger.warn( "Could not read segment features cache " + cacheFile + ", recomputing: " + e );
+				cacheFile.delete();
+			}
+		}
+
+		final Map< Integer, Map< Integer, SegmentFeatures > > features = LabelAnalyzer.analyzeLabels( labels, intensities, Runtime.getRuntime().availableProcessors(), computeQuantiles, job );
+
+		try
+		{
+			write( cacheFile, contentHash, intensities.length, computeQuantiles, features );
+		}
+		catch ( IOException e )
+		{
+			Logger.warn( "Could not write segment features cache " + cacheFile + ": " + e.getMessage() );
+		}
+
+		return features;
+	}
+
+	public static File getCacheFile( ImagePlus labels, ImagePlus[] intensities )
+	{
+		final StringBuilder key = new StringBuilder( getPath( labels ) );
+		key.append( "_" ).append( labels.getWidth() ).append( "x" ).append( labels.getHeight() )
+				.append( "x" ).append( labels.getNSlices() ).append( "x" ).append( labels.getNFrames() );
+		for ( ImagePlus intensity : intensities )
+			key.append( "_" ).append( getPath( intensity ) );
+
+		return new File( cacheDirectory, Long.toHexString( hash( key.toString() ) ) + ".features" );
+	}
+
+	/**
+	 * A fast hash of the pixel values and calibrations of the images.
+	 * The slices are hashed in parallel.
+	 */
+	public static long contentHash( ImagePlus labels, ImagePlus[] intensities )
+	{
+		long hash = contentHash( labels );
+		for ( ImagePlus intensity : intensities )
+			hash = mix( hash, contentHash( intensity ) );
+		return hash;
+	}
+
+	public static long contentHash( ImagePlus imagePlus )
+	{
+		final ImageStack stack = imagePlus.getImageStack();
+		final long[] sliceHashes = IntStream.rangeClosed( 1, stack.getSize() ).parallel()
+				.mapToLong( n -> hashPixels( stack.getPixels( n ) ) )
+				.toArray();
+
+		long hash = mix( mix( imagePlus.getWidth(), imagePlus.getHeight() ), stack.getSize() );
+		for ( long sliceHash : sliceHashes )
+			hash = mix( hash, sliceHash );
+
+		final Calibration calibration = imagePlus.getCalibration();
+		hash = mix( hash, Double.doubleToLongBits( calibration.pixelWidth ) );
+		hash = mix( hash, Double.doubleToLongBits( calibration.pixelHeight ) );
+		hash = mix( hash, Double.doubleToLongBits( calibration.pixelDepth ) );
+		return hash;
+	}
+
+	private static String getPath( ImagePlus imagePlus )
+	{
+		final FileInfo fileInfo = imagePlus.getOriginalFileInfo();
+		if ( fileInfo != null && fileInfo.directory != null && fileInfo.fileName != null )
+			return new File( fileInfo.directory, fileInfo.fileName ).getAbsolutePath();
+		else
+			return imagePlus.getTitle();
+	}
+
+	private static long hashPixels( Object pixels )
+	{
+		long hash = 0xCBF29CE484222325L;
+		if ( pixels instanceof byte[] )
+		{
+			for ( byte value : ( byte[] ) pixels )
+				hash = ( hash ^ value ) * 0x100000001B3L;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			for ( short value : ( short[] ) pixels )
+				hash = ( hash ^ value ) * 0x100000001B3L;
+		}
+		else if ( pixels instanceof float[] )
+		{
+			for ( float value : ( float[] ) pixels )
+				hash = ( hash ^ Float.floatToRawIntBits( value ) ) * 0x100000001B3L;
+		}
+		else if ( pixels instanceof int[] )
+		{
+			for ( int value : ( int[] ) pixels )
+				hash = ( hash ^ value ) * 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	private static long hash( String string )
+	{
+		long hash = 0xCBF29CE484222325L;
+		for ( int i = 0; i < string.length(); i++ )
+			hash = ( hash ^ string.charAt( i ) ) * 0x100000001B3L;
+		return hash;
+	}
+
+	private static long mix( long hash, long value )
+	{
+		long h = ( hash ^ value ) * 0x9E3779B97F4A7C15L;
+		return h ^ ( h >>> 31 );
+	}
+
+	static void write( File file, long contentHash, int numChannels, boolean hasQuantiles, Map< Integer, Map< Integer, SegmentFeatures > > frameToFeatures ) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		final File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 1 << 16 ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( FORMAT_VERSION );
+			out.writeLong( contentHash );
+			out.writeInt( numChannels );
+			out.writeBoolean( hasQuantiles );
+			out.writeInt( frameToFeatures.size() );
+
+			for ( Map.Entry< Integer, Map< Integer, SegmentFeatures > > entry : frameToFeatures.entrySet() )
+			{
+				final List< Integer > labels = new ArrayList<>( entry.getValue().keySet() );
+				final List< SegmentFeatures > features = new ArrayList<>();
+				for ( Integer label : labels )
+					features.add( entry.getValue().get( label ) );
+
+				out.writeInt( entry.getKey() );
+				out.writeInt( labels.size() );
+				for ( Integer label : labels ) out.writeInt( label );
+				for ( SegmentFeatures f : features ) out.writeInt( f.numPixels );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.volume );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.anchorX );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.anchorY );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.anchorZ );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMinX );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMinY );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMinZ );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMaxX );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMaxY );
+				for ( SegmentFeatures f : features ) out.writeDouble( f.bbMaxZ );
+				for ( int c = 0; c < numChannels; c++ )
+				{
+					for ( SegmentFeatures f : features ) out.writeDouble( f.meanIntensity[ c ] );
+					for ( SegmentFeatures f : features ) out.writeDouble( f.sumIntensity[ c ] );
+					for ( SegmentFeatures f : features ) out.writeDouble( f.minIntensity[ c ] );
+					for ( SegmentFeatures f : features ) out.writeDouble( f.maxIntensity[ c ] );
+					for ( SegmentFeatures f : features ) out.writeDouble( f.varianceIntensity[ c ] );
+					if ( ! hasQuantiles ) continue;
+					for ( SegmentFeatures f : features ) out.writeDouble( f.medianIntensity[ c ] );
+					for ( SegmentFeatures f : features ) out.writeDouble( f.p95Intensity[ c ] );
+				}
+			}
+		}
+
+		Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * @return the features, or null if the file does not match the content hash
+	 *         or does not contain the requested quantiles
+	 * @throws IOException
+	 *             if the file cannot be read or is truncated
+	 */
+	static Map< Integer, Map< Integer, SegmentFeatures > > read( File file, long contentHash, int numChannels, boolean requiresQuantiles ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+
+		if ( buffer.getInt() != MAGIC ) return null;
+		if ( buffer.getInt() != FORMAT_VERSION ) return null;
+		if ( buffer.getLong() != contentHash ) return null;
+		if ( buffer.getInt() != numChannels ) return null;
+		final boolean hasQuantiles = buffer.get() != 0;
+		if ( requiresQuantiles && ! hasQuantiles ) return null;
+		final int numIntensityColumns = hasQuantiles ? NUM_INTENSITY_COLUMNS + NUM_QUANTILE_COLUMNS : NUM_INTENSITY_COLUMNS;
+
+		final int numFrames = buffer.getInt();
+		// each frame has at least its index and number of labels
+		if ( numFrames < 0 || numFrames > buffer.remaining() / 8 )
+			throw new IOException( "Invalid number of frames: " + numFrames );
+		final long bytesPerLabel = 4 + 4 + 8 * ( NUM_SCALAR_COLUMNS + ( long ) numChannels * numIntensityColumns );
+
+		final Map< Integer, Map< Integer, SegmentFeatures > > frameToFeatures = new TreeMap<>();
+		for ( int t = 0; t < numFrames; t++ )
+		{
+			final int frame = buffer.getInt();
+			final int numLabels = buffer.getInt();
+			if ( numLabels < 0 || numLabels * bytesPerLabel > buffer.remaining() )
+				throw new IOException( "Invalid number of labels in frame " + frame + ": " + numLabels + ", the file is truncated or corrupt" );
+			final int[] labels = readInts( buffer, numLabels );
+			final int[] numPixels = readInts( buffer, numLabels );
+			final double[][] scalars = new double[ NUM_SCALAR_COLUMNS ][];
+			for ( int column = 0; column < NUM_SCALAR_COLUMNS; column++ )
+				scalars[ column ] = readDoubles( buffer, numLabels );
+			final double[][][] intensities = new double[ numChannels ][ numIntensityColumns ][];
+			for ( int c = 0; c < numChannels; c++ )
+				for ( int column = 0; column < numIntensityColumns; column++ )
+					intensities[ c ][ column ] = readDoubles( buffer, numLabels );
+
+			final Map< Integer, SegmentFeatures > labelToFeatures = new HashMap<>();
+			for ( int i = 0; i < numLabels; i++ )
+			{
+				final SegmentFeatures f = new SegmentFeatures();
+				f.numPixels = numPixels[ i ];
+				f.volume = scalars[ 0 ][ i ];
+				f.anchorX = scalars[ 1 ][ i ];
+				f.anchorY = scalars[ 2 ][ i ];
+				f.anchorZ = scalars[ 3 ][ i ];
+				f.bbMinX = scalars[ 4 ][ i ];
+				f.bbMinY = scalars[ 5 ][ i ];
+				f.bbMinZ = scalars[ 6 ][ i ];
+				f.bbMaxX = scalars[ 7 ][ i ];
+				f.bbMaxY = scalars[ 8 ][ i ];
+				f.bbMaxZ = scalars[ 9 ][ i ];
+				f.meanIntensity = new double[ numChannels ];
+				f.sumIntensity = new double[ numChannels ];
+				f.minIntensity = new double[ numChannels ];
+				f.maxIntensity = new double[ numChannels ];
+				f.varianceIntensity = new double[ numChannels ];
+				if ( hasQuantiles )
+				{
+					f.medianIntensity = new double[ numChannels ];
+					f.p95Intensity = new double[ numChannels ];
+				}
+				for ( int c = 0; c < numChannels; c++ )
+				{
+					f.meanIntensity[ c ] = intensities[ c ][ 0 ][ i ];
+					f.sumIntensity[ c ] = intensities[ c ][ 1 ][ i ];
+					f.minIntensity[ c ] = intensities[ c ][ 2 ][ i ];
+					f.maxIntensity[ c ] = intensities[ c ][ 3 ][ i ];
+					f.varianceIntensity[ c ] = intensities[ c ][ 4 ][ i ];
+					if ( ! hasQuantiles ) continue;
+					f.medianIntensity[ c ] = intensities[ c ][ 5 ][ i ];
+					f.p95Intensity[ c ] = intensities[ c ][ 6 ][ i ];
+				}
+				labelToFeatures.put( labels[ i ], f );
+			}
+
+			frameToFeatures.put( frame, labelToFeatures );
+		}
+
+		return frameToFeatures;
+	}
+
+	private static int[] readInts( ByteBuffer buffer, int length )
+	{
+		final int[] values = new int[ length ];
+		buffer.asIntBuffer().get( values );
+		buffer.position( buffer.position() + 4 * length );
+		return values;
+	}
+
+	private static double[] readDoubles( ByteBuffer buffer, int length )
+	{
+		final double[] values = new double[ length ];
+		buffer.asDoubleBuffer().get( values );
+		buffer.position( buffer.position() + 8 * length );
+		return values;
+	}
+}
@@ -0,0 +1,204 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.imagesegment.ImageSegment;
+import de.embl.cba.tables.tablerow.TableRow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Decides which segments are rendered, by a conjunction of conditions,
+ * typically one per table column, e.g. a minimum volume and a predicted class.
+ * <p>
+ * Each condition is evaluated once per segment into a bitset per label image and frame,
+ * and the visibility bitsets are the bitwise conjunction of the bitsets of all conditions.
+ * Changing or removing one condition therefore only evaluates that condition,
+ * and combines the others word by word.
+ * As in {@link SelectedLabels}, the bit of a segment is its position in
+ * {@link SegmentIndex.FrameSegments#getSegments()} and the visibility bitsets
+ * are updated in place, such that a converter can bind the bitset of its current frame once.
+ */
+public class SegmentFilter< T extends ImageSegment >
+{
+	private final SegmentIndex< T > segmentIndex;
+	private final Map< String, long[][][] > conditionToBits;
+	private final long[][][] imageIndexToFrameToVisibleBits;
+	private final List< Runnable > listeners;
+	private volatile boolean isActive;
+	private int numVisible;
+
+	public SegmentFilter( SegmentIndex< T > segmentIndex )
+	{
+		this.segmentIndex = segmentIndex;
+		this.conditionToBits = new LinkedHashMap<>();
+		this.listeners = new ArrayList<>();
+		this.imageIndexToFrameToVisibleBits = createBits();
+		this.numVisible = segmentIndex.size();
+	}
+
+	/**
+	 * @param min
+	 *            the inclusive lower bound, NaN for none
+	 * @param max
+	 *            the inclusive upper bound, NaN for none
+	 * @return a condition on the numeric value of a table column;
+	 *         segments whose value is not a number do not match
+	 */
+	public static < T extends ImageSegment > Predicate< T > numericColumnCondition( String columnName, double min, double max )
+	{
+		final double lowerBound = Double.isNaN( min ) ? Double.NEGATIVE_INFINITY : min;
+		final double upperBound = Double.isNaN( max ) ? Double.POSITIVE_INFINITY : max;
+		return segment ->
+		{
+			try
+			{
+				final double value = Double.parseDouble( ( ( TableRow ) segment ).getCell( columnName ) );
+				return value >= lowerBound && value <= upperBound;
+			}
+			catch ( NumberFormatException | NullPointerException e )
+			{
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return a condition on the text of a table column, ignoring the case
+	 */
+	public static < T extends ImageSegment > Predicate< T > textColumnCondition( String columnName, String text )
+	{
+		return segment -> text.equalsIgnoreCase( ( ( TableRow ) segment ).getCell( columnName ) );
+	}
+
+	/**
+	 * Adds the condition, or replaces the condition with the same name.
+	 */
+	public synchronized void setCondition( String name, Predicate< T > condition )
+	{
+		final long[][][] bits = createBits();
+		for ( int imageIndex = 0; imageIndex < bits.length; imageIndex++ )
+		{
+			for ( int frame = 0; frame < bits[ imageIndex ].length; frame++ )
+			{
+				final List< T > segments = segmentIndex.getFrameSegments( imageIndex, frame ).getSegments();
+				final long[] frameBits = bits[ imageIndex ][ frame ];
+				for ( int index = 0; index < segments.size(); index++ )
+					if ( condition.test( segments.get( index ) ) )
+						frameBits[ index >>> 6 ] |= 1L << index;
+			}
+		}
+
+		conditionToBits.put( name, bits );
+		updateVisibleBits();
+	}
+
+	public synchronized void removeCondition( String name )
+	{
+		if ( conditionToBits.remove( name ) == null ) return;
+		updateVisibleBits();
+	}
+
+	public synchronized void removeAllConditions()
+	{
+		conditionToBits.clear();
+		updateVisibleBits();
+	}
+
+	/**
+	 * @return whether there are conditions; if not, all segments are visible
+	 */
+	public boolean isActive()
+	{
+		return isActive;
+	}
+
+	public synchronized int getNumVisible()
+	{
+		return numVisible;
+	}
+
+	/**
+	 * @param imageIndex
+	 *            as returned by {@link SegmentIndex#getImageIndex(String)}
+	 * @return the bitset of the visible segments of this frame, which is updated in place
+	 */
+	public long[] getVisibleBits( int imageIndex, int frame )
+	{
+		if ( imageIndex < 0 || imageIndex >= imageIndexToFrameToVisibleBits.length ) return new long[ 0 ];
+		final long[][] frameToBits = imageIndexToFrameToVisibleBits[ imageIndex ];
+		if ( frame < 0 || frame >= frameToBits.length ) return new long[ 0 ];
+		return frameToBits[ frame ];
+	}
+
+	/**
+	 * @return whether the segment is rendered; segments that are not in the {@link SegmentIndex} are not hidden
+	 */
+	public boolean isVisible( T segment )
+	{
+		if ( ! isActive ) return true;
+
+		final int imageIndex = segmentIndex.getImageIndex( segment.imageId() );
+		final int index = segmentIndex.getFrameSegments( imageIndex, segment.timePoint() ).indexOf( ( int ) segment.labelId() );
+		if ( index < 0 ) return true;
+
+		return isVisible( getVisibleBits( imageIndex, segment.timePoint() ), index );
+	}
+
+	public static boolean isVisible( long[] bits, int index )
+	{
+		final int word = index >>> 6;
+		return word < bits.length && ( bits[ word ] & ( 1L << index ) ) != 0;
+	}
+
+	/**
+	 * @param listener
+	 *            is notified after the visibility of the segments has changed
+	 */
+	public void addListener( Runnable listener )
+	{
+		listeners.add( listener );
+	}
+
+	private void updateVisibleBits()
+	{
+		numVisible = 0;
+		for ( int imageIndex = 0; imageIndex < imageIndexToFrameToVisibleBits.length; imageIndex++ )
+		{
+			for ( int frame = 0; frame < imageIndexToFrameToVisibleBits[ imageIndex ].length; frame++ )
+			{
+				final long[] visibleBits = imageIndexToFrameToVisibleBits[ imageIndex ][ frame ];
+				final int numSegments = segmentIndex.getFrameSegments( imageIndex, frame ).size();
+				for ( int word = 0; word < visibleBits.length; word++ )
+				{
+					// the bits beyond the number of segments stay cleared
+					long bits = word == visibleBits.length - 1 && numSegments % 64 != 0 ? ( 1L << numSegments ) - 1 : -1L;
+					for ( long[][][] conditionBits : conditionToBits.values() )
+						bits &= conditionBits[ imageIndex ][ frame ][ word ];
+					visibleBits[ word ] = bits;
+					numVisible += Long.bitCount( bits );
+				}
+			}
+		}
+
+		isActive = ! conditionToBits.isEmpty();
+
+		for ( Runnable listener : listeners )
+			listener.run();
+	}
+
+	private long[][][] createBits()
+	{
+		final long[][][] bits = new long[ segmentIndex.getNumImages() ][][];
+		for ( int imageIndex = 0; imageIndex < bits.length; imageIndex++ )
+		{
+			final int numFrames = segmentIndex.getNumFrames( imageIndex );
+			bits[ imageIndex ] = new long[ numFrames ][];
+			for ( int frame = 0; frame < numFrames; frame++ )
+				bits[ imageIndex ][ frame ] = new long[ ( segmentIndex.getFrameSegments( imageIndex, frame ).size() + 63 ) / 64 ];
+		}
+		return bits;
+	}
+}
@@ -0,0 +1,237 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.imagesegment.ImageSegment;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up image segments by label image, frame and label.
+ * <p>
+ * The image ids are interned to small integers, and for each label image
+ * the segments are partitioned into an array of {@link FrameSegments}, indexed by frame.
+ * Within a frame, the labels are indexed by a {@link LabelIndexMap}.
+ * In contrast to a map with {@link de.embl.cba.tables.imagesegment.LabelFrameAndImage} keys,
+ * a lookup does not allocate a key object and the memory per segment
+ * does not depend on the number of segments.
+ * <p>
+ * Clients that look up many labels of the same frame, such as converters,
+ * should resolve the {@link FrameSegments} once and use {@link FrameSegments#get(int)}.
+ */
+public class SegmentIndex< T extends ImageSegment >
+{
+	private final Map< String, Integer > imageIdToIndex;
+	private final FrameSegments< T >[][] imageIndexToFrameSegments;
+	private final FrameSegments< T > empty;
+	private int numSegments;
+	private int maxTimePoint;
+
+	public SegmentIndex( Collection< T > segments )
+	{
+		imageIdToIndex = new HashMap<>();
+		empty = new FrameSegments<>();
+
+		final List< List< FrameSegments< T > > > imageIndexToFrames = new ArrayList<>();
+		for ( T segment : segments )
+		{
+			final int imageIndex = imageIdToIndex.computeIfAbsent( segment.imageId(), imageId -> imageIdToIndex.size() );
+			if ( imageIndex == imageIndexToFrames.size() )
+				imageIndexToFrames.add( new ArrayList<>() );
+
+			final List< FrameSegments< T > > frames = imageIndexToFrames.get( imageIndex );
+			final int frame = segment.timePoint();
+			if ( frame < 0 )
+				throw new RuntimeException( "Segment " + segment.labelId() + " of " + segment.imageId() + " has a negative time point: " + frame );
+			while ( frames.size() <= frame )
+				frames.add( null );
+			if ( frames.get( frame ) == null )
+				frames.set( frame, new FrameSegments<>() );
+
+			if ( frames.get( frame ).add( segment ) )
+			{
+				numSegments++;
+				maxTimePoint = Math.max( maxTimePoint, frame );
+			}
+		}
+
+		imageIndexToFrameSegments = new FrameSegments[ imageIndexToFrames.size() ][];
+		for ( int imageIndex = 0; imageIndex < imageIndexToFrameSegments.length; imageIndex++ )
+		{
+			final List< FrameSegments< T > > frames = imageIndexToFrames.get( imageIndex );
+			imageIndexToFrameSegments[ imageIndex ] = new FrameSegments[ frames.size() ];
+			for ( int frame = 0; frame < frames.size(); frame++ )
+				imageIndexToFrameSegments[ imageIndex ][ frame ] = frames.get( frame ) == null ? empty : frames.get( frame );
+		}
+	}
+
+	/**
+	 * @return the interned index of the label image, or -1 if there are no segments of this image
+	 */
+	public int getImageIndex( String imageId )
+	{
+		final Integer imageIndex = imageIdToIndex.get( imageId );
+		return imageIndex == null ? -1 : imageIndex;
+	}
+
+	public int getNumImages()
+	{
+		return imageIndexToFrameSegments.length;
+	}
+
+	/**
+	 * @return the number of frames up to the last frame with segments
+	 */
+	public int getNumFrames( int imageIndex )
+	{
+		return imageIndexToFrameSegments[ imageIndex ].length;
+	}
+
+	/**
+	 * @param imageIndex
+	 *            as returned by {@link #getImageIndex(String)}
+	 * @return the segments of one frame of one label image, which are empty if there are none
+	 */
+	public FrameSegments< T > getFrameSegments( int imageIndex, int frame )
+	{
+		if ( imageIndex < 0 || imageIndex >= imageIndexToFrameSegments.length ) return empty;
+		final FrameSegments< T >[] frames = imageIndexToFrameSegments[ imageIndex ];
+		if ( frame < 0 || frame >= frames.length ) return empty;
+		return frames[ frame ];
+	}
+
+	/**
+	 * @return the segment, or null if there is no segment with this label
+	 */
+	public T get( String imageId, int frame, int label )
+	{
+		return getFrameSegments( getImageIndex( imageId ), frame ).get( label );
+	}
+
+	/**
+	 * @return the segments of one frame of one label image, in the order in which they have been indexed
+	 */
+	public List< T > getSegments( String imageId, int frame )
+	{
+		return getFrameSegments( getImageIndex( imageId ), frame ).getSegments();
+	}
+
+	public int size()
+	{
+		return numSegments;
+	}
+
+	public int getMaxTimePoint()
+	{
+		return maxTimePoint;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the label indices and segment references
+	 */
+	public long getMemoryInBytes()
+	{
+		long bytes = 0;
+		for ( FrameSegments< T >[] frames : imageIndexToFrameSegments )
+		{
+			bytes += 8L * frames.length;
+			for ( FrameSegments< T > frameSegments : frames )
+				if ( frameSegments != empty )
+					bytes += frameSegments.getMemoryInBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return a short description of the memory per segment, for logging
+	 */
+	public String getMemoryReport()
+	{
+		int numDense = 0, numFrames = 0;
+		for ( FrameSegments< T >[] frames : imageIndexToFrameSegments )
+		{
+			for ( FrameSegments< T > frameSegments : frames )
+			{
+				if ( frameSegments == empty ) continue;
+				numFrames++;
+				if ( frameSegments.labelToIndex.isDense() ) numDense++;
+			}
+		}
+
+		final double bytesPerSegment = numSegments == 0 ? 0 : ( double ) getMemoryInBytes() / numSegments;
+		return String.format( "%d segments of %d images in %d frames (%d dense, %d sparse), %.1f bytes per segment", numSegments, imageIdToIndex.size(), numFrames, numDense, numFrames - numDense, bytesPerSegment );
+	}
+
+	/**
+	 * The segments of one frame of one label image.
+	 */
+	public static class FrameSegments< T extends ImageSegment >
+	{
+		private final LabelIndexMap labelToIndex = new LabelIndexMap();
+		private final ArrayList< T > segments = new ArrayList<>();
+
+		/**
+		 * @return the segment, or null if there is no segment with this label
+		 */
+		public T get( int label )
+		{
+			final int index = labelToIndex.get( label );
+			if ( index < 0 ) return null;
+			return segments.get( index );
+		}
+
+		/**
+		 * @return the position of the segment with this label in {@link #getSegments()}, or -1
+		 */
+		public int indexOf( int label )
+		{
+			return labelToIndex.get( label );
+		}
+
+		/**
+		 * @return the map from label to position in {@link #getSegments()}, which must not be modified
+		 */
+		public LabelIndexMap getLabelIndexMap()
+		{
+			return labelToIndex;
+		}
+
+		/**
+		 * @return the segments, in the order in which they have been indexed
+		 */
+		public List< T > getSegments()
+		{
+			return Collections.unmodifiableList( segments );
+		}
+
+		public int size()
+		{
+			return segments.size();
+		}
+
+		long getMemoryInBytes()
+		{
+			return labelToIndex.getMemoryInBytes() + 8L * segments.size();
+		}
+
+		/**
+		 * @return whether the segment is new, as in a map, a later segment with the same label replaces the earlier one;
+		 *         segments of the background label are not added
+		 */
+		private boolean add( T segment )
+		{
+			final int index = labelToIndex.add( ( int ) segment.labelId() );
+			if ( index < 0 ) return false;
+			if ( index < segments.size() )
+			{
+				segments.set( index, segment );
+				return false;
+			}
+			segments.add( segment );
+			return true;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.imagesegment.ImageSegment;
+import de.embl.cba.tables.select.SelectionListener;
+import de.embl.cba.tables.select.SelectionModel;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Mirrors the selection of a {@link SelectionModel} into one bitset per label image and frame,
+ * such that a converter can test whether the segment of a voxel is selected
+ * without looking up the segment object.
+ * <p>
+ * The bit of a segment is its position in {@link SegmentIndex.FrameSegments#getSegments()}.
+ * The bitsets of all frames are allocated upfront and updated in place,
+ * such that a converter can bind the bitset of its current frame once.
+ * <p>
+ * The selection events do not tell which segments changed. Upon an event, the set bits
+ * are therefore tested against the {@link SelectionModel} and cleared if the segment is
+ * no longer selected, and the bits of all selected segments are set. This costs time
+ * in the order of the number of selected segments, without copying the selection.
+ * Callers that select many segments should thus do so with one event,
+ * i.e. with {@link SelectionModel#setSelected(java.util.Collection, boolean)}.
+ */
+public class SelectedLabels< T extends ImageSegment >
+{
+	private final SegmentIndex< T > segmentIndex;
+	private final SelectionModel< T > selectionModel;
+	private final long[][][] imageIndexToFrameToBits;
+
+	private volatile int numSelected;
+
+	public SelectedLabels( SegmentIndex< T > segmentIndex, SelectionModel< T > selectionModel )
+	{
+		this.segmentIndex = segmentIndex;
+		this.selectionModel = selectionModel;
+
+		imageIndexToFrameToBits = new long[ segmentIndex.getNumImages() ][][];
+		for ( int imageIndex = 0; imageIndex < imageIndexToFrameToBits.length; imageIndex++ )
+		{
+			final int numFrames = segmentIndex.getNumFrames( imageIndex );
+			imageIndexToFrameToBits[ imageIndex ] = new long[ numFrames ][];
+			for ( int frame = 0; frame < numFrames; frame++ )
+			{
+				final int numSegments = segmentIndex.getFrameSegments( imageIndex, frame ).size();
+				imageIndexToFrameToBits[ imageIndex ][ frame ] = new long[ ( numSegments + 63 ) / 64 ];
+			}
+		}
+
+		selectionModel.listeners().add( new SelectionListener< T >()
+		{
+			@Override
+			public void selectionChanged()
+			{
+				update();
+			}
+
+			@Override
+			public void focusEvent( T selection )
+			{
+				// the focus does not change the selection
+			}
+		} );
+
+		update();
+	}
+
+	/**
+	 * @param imageIndex
+	 *            as returned by {@link SegmentIndex#getImageIndex(String)}
+	 * @return the bitset of the selected segments of this frame, which is updated in place
+	 */
+	public long[] getBits( int imageIndex, int frame )
+	{
+		if ( imageIndex < 0 || imageIndex >= imageIndexToFrameToBits.length ) return new long[ 0 ];
+		final long[][] frameToBits = imageIndexToFrameToBits[ imageIndex ];
+		if ( frame < 0 || frame >= frameToBits.length ) return new long[ 0 ];
+		return frameToBits[ frame ];
+	}
+
+	public static boolean isSelected( long[] bits, int index )
+	{
+		final int word = index >>> 6;
+		return word < bits.length && ( bits[ word ] & ( 1L << index ) ) != 0;
+	}
+
+	/**
+	 * @return whether any segment, of any image, is selected
+	 */
+	public boolean isAnySelected()
+	{
+		return numSelected > 0;
+	}
+
+	private synchronized void update()
+	{
+		if ( numSelected > 0 )
+			clearUnselectedBits();
+
+		final Set< T > selected = selectionModel.getSelected();
+		for ( T segment : selected )
+			setBit( segment, true );
+
+		numSelected = selected.size();
+	}
+
+	private void clearUnselectedBits()
+	{
+		for ( int imageIndex = 0; imageIndex < imageIndexToFrameToBits.length; imageIndex++ )
+		{
+			for ( int frame = 0; frame < imageIndexToFrameToBits[ imageIndex ].length; frame++ )
+			{
+				final long[] bits = imageIndexToFrameToBits[ imageIndex ][ frame ];
+				final List< T > segments = segmentIndex.getFrameSegments( imageIndex, frame ).getSegments();
+				for ( int word = 0; word < bits.length; word++ )
+				{
+					long remaining = bits[ word ];
+					while ( remaining != 0 )
+					{
+						final int index = ( word << 6 ) + Long.numberOfTrailingZeros( remaining );
+						remaining &= remaining - 1;
+						if ( ! selectionModel.isSelected( segments.get( index ) ) )
+							bits[ word ] &= ~( 1L << index );
+					}
+				}
+			}
+		}
+	}
+
+	private void setBit( T segment, boolean isSelected )
+	{
+		final int imageIndex = segmentIndex.getImageIndex( segment.imageId() );
+		final int index = segmentIndex.getFrameSegments( imageIndex, segment.timePoint() ).indexOf( ( int ) segment.labelId() );
+		if ( index < 0 ) return;
+
+		final long[] bits = imageIndexToFrameToBits[ imageIndex ][ segment.timePoint() ];
+		if ( isSelected )
+			bits[ index >>> 6 ] |= 1L << index;
+		else
+			bits[ index >>> 6 ] &= ~( 1L << index );
+	}
+}
@@ -0,0 +1,145 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.tables.Logger;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes {@link ShapeFeatures} of all segments in a label image.
+ * <p>
+ * The moments and boundary faces are accumulated in one pass over the labels,
+ * parallelized in the same manner as in the {@link LabelAnalyzer}.
+ * To count the boundary faces in z, each task additionally reads
+ * the neighbouring z-slices of the slices it analyzes.
+ */
+public class ShapeAnalyzer
+{
+	public final static Map< Integer, Map< Integer, ShapeFeatures > > analyzeShapes( ImagePlus labels )
+	{
+		return analyzeShapes( labels, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @return the shape features of the segments, per frame and label; frames are zero-based
+	 */
+	public final static Map< Integer, Map< Integer, ShapeFeatures > > analyzeShapes( ImagePlus labels, int numThreads )
+	{
+		return analyzeShapes( labels, numThreads, new FeatureComputationJob( "Shape analysis of " + labels.getTitle() ) );
+	}
+
+	/**
+	 * As {@link #analyzeShapes(ImagePlus, int)}, reporting the progress to the job.
+	 *
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public final static Map< Integer, Map< Integer, ShapeFeatures > > analyzeShapes( ImagePlus labels, int numThreads, FeatureComputationJob job )
+	{
+		final ImageStack stack = labels.getImageStack();
+		final int[][] stackIndices = LabelAnalyzer.getStackIndices( labels );
+		final Calibration calibration = labels.getCalibration();
+		final boolean is2D = labels.getNSlices() == 1;
+
+		final int numFrames = stackIndices.length;
+		final int sizeZ = stackIndices[ 0 ].length;
+		final int numTasksPerFrame = Math.max( 1, Math.min( numThreads / numFrames, sizeZ ) );
+
+		job.start( ( long ) numFrames * sizeZ * labels.getWidth() * labels.getHeight() );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numFrames * numTasksPerFrame ) ) );
+		try
+		{
+			final List< List< Future< ShapeFeaturesAccumulator > > > frameToFutures = new ArrayList<>();
+			for ( int t = 0; t < numFrames; t++ )
+			{
+				final List< Future< ShapeFeaturesAccumulator > > futures = new ArrayList<>();
+				for ( int task = 0; task < numTasksPerFrame; task++ )
+				{
+					final int frame = t;
+					final int firstZ = task;
+					futures.add( executorService.submit( () -> analyzeSlices( stack, stackIndices[ frame ], firstZ, numTasksPerFrame, job ) ) );
+				}
+				frameToFutures.add( futures );
+			}
+
+			final Map< Integer, Map< Integer, ShapeFeatures > > frameToFeatures = new TreeMap<>();
+			for ( int t = 0; t < numFrames; t++ )
+			{
+				final List< Future< ShapeFeaturesAccumulator > > futures = frameToFutures.get( t );
+				final ShapeFeaturesAccumulator accumulator = futures.get( 0 ).get();
+				for ( int task = 1; task < numTasksPerFrame; task++ )
+					accumulator.merge( futures.get( task ).get() );
+
+				frameToFeatures.put( t, accumulator.getFeatures( calibration, is2D ) );
+			}
+
+			job.finish();
+			Logger.info( job.getSummary() );
+
+			return frameToFeatures;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the shapes of " + labels.getTitle(), e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	private static ShapeFeaturesAccumulator analyzeSlices( ImageStack labels, int[] stackIndices, int firstZ, int stepZ, FeatureComputationJob job )
+	{
+		final int sizeX = labels.getWidth();
+		final int sizeY = labels.getHeight();
+		final int sizeZ = stackIndices.length;
+
+		final ShapeFeaturesAccumulator accumulator = new ShapeFeaturesAccumulator();
+
+		for ( int z = firstZ; z < sizeZ; z += stepZ )
+		{
+			job.checkCancelled();
+
+			final ImageProcessor slice = labels.getProcessor( stackIndices[ z ] );
+			final ImageProcessor previousSlice = z > 0 ? labels.getProcessor( stackIndices[ z - 1 ] ) : null;
+			final ImageProcessor nextSlice = z < sizeZ - 1 ? labels.getProcessor( stackIndices[ z + 1 ] ) : null;
+
+			for ( int y = 0, i = 0; y < sizeY; y++ )
+			{
+				for ( int x = 0; x < sizeX; x++, i++ )
+				{
+					final float label = slice.getf( i );
+
+					if ( label < 1 ) continue;
+
+					int facesX = 0, facesY = 0, facesZ = 0;
+					if ( x == 0 || slice.getf( i - 1 ) != label ) facesX++;
+					if ( x == sizeX - 1 || slice.getf( i + 1 ) != label ) facesX++;
+					if ( y == 0 || slice.getf( i - sizeX ) != label ) facesY++;
+					if ( y == sizeY - 1 || slice.getf( i + sizeX ) != label ) facesY++;
+					if ( previousSlice == null || previousSlice.getf( i ) != label ) facesZ++;
+					if ( nextSlice == null || nextSlice.getf( i ) != label ) facesZ++;
+
+					accumulator.add( ( int ) label, x, y, z, facesX, facesY, facesZ );
+				}
+			}
+
+			job.addProcessedVoxels( ( long ) sizeX * sizeY );
+		}
+
+		return accumulator;
+	}
+}
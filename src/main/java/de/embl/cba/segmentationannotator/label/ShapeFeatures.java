@@ -0,0 +1,20 @@
+package de.embl.cba.segmentationannotator.label;
+
+public class ShapeFeatures
+{
+	// calibrated semi-axes lengths of the ellipsoid with the same second-order moments
+	public double majorAxis;
+	public double mediumAxis;
+	public double minorAxis;
+
+	// calibrated direction of the major axis
+	public double majorAxisX;
+	public double majorAxisY;
+	public double majorAxisZ;
+
+	public double elongation; // majorAxis / mediumAxis
+	public double flatness; // mediumAxis / minorAxis, NaN for 2D segments
+
+	public double surfaceArea; // perimeter for 2D segments
+	public double sphericity; // circularity for 2D segments
+}
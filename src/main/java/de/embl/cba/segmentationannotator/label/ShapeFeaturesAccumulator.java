@@ -0,0 +1,250 @@
+package de.embl.cba.segmentationannotator.label;
+
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the first and second-order moments and the number of
+ * boundary voxel faces of all segments into primitive per-label arrays.
+ * <p>
+ * One accumulator must only be used by one thread.
+ * Accumulators of different parts of the image can be combined with {@link #merge}.
+ */
+public class ShapeFeaturesAccumulator
+{
+	private final LabelIndexMap labelToIndex;
+	private long[] numPixels;
+	private double[] sumX, sumY, sumZ;
+	private double[] sumXX, sumYY, sumZZ, sumXY, sumXZ, sumYZ;
+	private long[] facesX, facesY, facesZ;
+
+	private int lastLabel;
+	private int lastIndex = -1;
+
+	public ShapeFeaturesAccumulator()
+	{
+		labelToIndex = new LabelIndexMap();
+		allocate( 1024 );
+	}
+
+	/**
+	 * Adds one voxel of a segment.
+	 *
+	 * @param numFacesX
+	 *            the number of the voxel's faces perpendicular to x that touch another label
+	 */
+	public void add( int label, int x, int y, int z, int numFacesX, int numFacesY, int numFacesZ )
+	{
+		final int index = indexOf( label );
+		numPixels[ index ]++;
+		sumX[ index ] += x;
+		sumY[ index ] += y;
+		sumZ[ index ] += z;
+		sumXX[ index ] += ( double ) x * x;
+		sumYY[ index ] += ( double ) y * y;
+		sumZZ[ index ] += ( double ) z * z;
+		sumXY[ index ] += ( double ) x * y;
+		sumXZ[ index ] += ( double ) x * z;
+		sumYZ[ index ] += ( double ) y * z;
+		facesX[ index ] += numFacesX;
+		facesY[ index ] += numFacesY;
+		facesZ[ index ] += numFacesZ;
+	}
+
+	public void merge( ShapeFeaturesAccumulator other )
+	{
+		for ( int otherIndex = 0; otherIndex < other.labelToIndex.size(); otherIndex++ )
+		{
+			final int index = indexOf( other.labelToIndex.getLabel( otherIndex ) );
+			numPixels[ index ] += other.numPixels[ otherIndex ];
+			sumX[ index ] += other.sumX[ otherIndex ];
+			sumY[ index ] += other.sumY[ otherIndex ];
+			sumZ[ index ] += other.sumZ[ otherIndex ];
+			sumXX[ index ] += other.sumXX[ otherIndex ];
+			sumYY[ index ] += other.sumYY[ otherIndex ];
+			sumZZ[ index ] += other.sumZZ[ otherIndex ];
+			sumXY[ index ] += other.sumXY[ otherIndex ];
+			sumXZ[ index ] += other.sumXZ[ otherIndex ];
+			sumYZ[ index ] += other.sumYZ[ otherIndex ];
+			facesX[ index ] += other.facesX[ otherIndex ];
+			facesY[ index ] += other.facesY[ otherIndex ];
+			facesZ[ index ] += other.facesZ[ otherIndex ];
+		}
+	}
+
+	/**
+	 * @param is2D
+	 *            if true, the perimeter and circularity are computed instead of
+	 *            the surface area and sphericity
+	 */
+	public Map< Integer, ShapeFeatures > getFeatures( Calibration calibration, boolean is2D )
+	{
+		final double[] s = new double[]{ calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth };
+		final double[][] covariance = new double[ 3 ][ 3 ];
+		final double[] eigenvalues = new double[ 3 ];
+		final double[] majorAxis = new double[ 3 ];
+
+		final HashMap< Integer, ShapeFeatures > labelToFeatures = new HashMap<>();
+
+		for ( int index = 0; index < labelToIndex.size(); index++ )
+		{
+			final double n = numPixels[ index ];
+			final double meanX = sumX[ index ] / n;
+			final double meanY = sumY[ index ] / n;
+			final double meanZ = sumZ[ index ] / n;
+
+			// calibrated covariance matrix; 1/12 accounts for the extent of a voxel
+			covariance[ 0 ][ 0 ] = ( sumXX[ index ] / n - meanX * meanX + 1.0 / 12 ) * s[ 0 ] * s[ 0 ];
+			covariance[ 1 ][ 1 ] = ( sumYY[ index ] / n - meanY * meanY + 1.0 / 12 ) * s[ 1 ] * s[ 1 ];
+			covariance[ 2 ][ 2 ] = is2D ? 0 : ( sumZZ[ index ] / n - meanZ * meanZ + 1.0 / 12 ) * s[ 2 ] * s[ 2 ];
+			covariance[ 0 ][ 1 ] = covariance[ 1 ][ 0 ] = ( sumXY[ index ] / n - meanX * meanY ) * s[ 0 ] * s[ 1 ];
+			covariance[ 0 ][ 2 ] = covariance[ 2 ][ 0 ] = is2D ? 0 : ( sumXZ[ index ] / n - meanX * meanZ ) * s[ 0 ] * s[ 2 ];
+			covariance[ 1 ][ 2 ] = covariance[ 2 ][ 1 ] = is2D ? 0 : ( sumYZ[ index ] / n - meanY * meanZ ) * s[ 1 ] * s[ 2 ];
+
+			symmetricEigenvalues( covariance, eigenvalues );
+			majorEigenvector( covariance, eigenvalues[ 0 ], majorAxis );
+
+			final ShapeFeatures features = new ShapeFeatures();
+
+			// the semi-axis of a solid ellipsoid (ellipse) is sqrt( 5 (4) * variance )
+			final double factor = is2D ? 4 : 5;
+			features.majorAxis = Math.sqrt( factor * Math.max( 0, eigenvalues[ 0 ] ) );
+			features.mediumAxis = Math.sqrt( factor * Math.max( 0, eigenvalues[ 1 ] ) );
+			features.minorAxis = Math.sqrt( factor * Math.max( 0, eigenvalues[ 2 ] ) );
+			features.majorAxisX = majorAxis[ 0 ];
+			features.majorAxisY = majorAxis[ 1 ];
+			features.majorAxisZ = majorAxis[ 2 ];
+			features.elongation = features.majorAxis / features.mediumAxis;
+			features.flatness = is2D ? Double.NaN : features.mediumAxis / features.minorAxis;
+
+			if ( is2D )
+			{
+				final double area = n * s[ 0 ] * s[ 1 ];
+				features.surfaceArea = facesX[ index ] * s[ 1 ] + facesY[ index ] * s[ 0 ];
+				features.sphericity = 4 * Math.PI * area / ( features.surfaceArea * features.surfaceArea );
+			}
+			else
+			{
+				final double volume = n * s[ 0 ] * s[ 1 ] * s[ 2 ];
+				features.surfaceArea = facesX[ index ] * s[ 1 ] * s[ 2 ] + facesY[ index ] * s[ 0 ] * s[ 2 ] + facesZ[ index ] * s[ 0 ] * s[ 1 ];
+				features.sphericity = Math.pow( Math.PI, 1.0 / 3 ) * Math.pow( 6 * volume, 2.0 / 3 ) / features.surfaceArea;
+			}
+
+			labelToFeatures.put( labelToIndex.getLabel( index ), features );
+		}
+
+		return labelToFeatures;
+	}
+
+	/**
+	 * Computes the eigenvalues of a symmetric 3x3 matrix in closed form,
+	 * sorted in descending order.
+	 */
+	public static void symmetricEigenvalues( double[][] a, double[] eigenvalues )
+	{
+		final double p1 = a[ 0 ][ 1 ] * a[ 0 ][ 1 ] + a[ 0 ][ 2 ] * a[ 0 ][ 2 ] + a[ 1 ][ 2 ] * a[ 1 ][ 2 ];
+		if ( p1 == 0 )
+		{
+			eigenvalues[ 0 ] = a[ 0 ][ 0 ];
+			eigenvalues[ 1 ] = a[ 1 ][ 1 ];
+			eigenvalues[ 2 ] = a[ 2 ][ 2 ];
+			Arrays.sort( eigenvalues );
+			final double largest = eigenvalues[ 2 ];
+			eigenvalues[ 2 ] = eigenvalues[ 0 ];
+			eigenvalues[ 0 ] = largest;
+			return;
+		}
+
+		final double q = ( a[ 0 ][ 0 ] + a[ 1 ][ 1 ] + a[ 2 ][ 2 ] ) / 3;
+		final double b00 = a[ 0 ][ 0 ] - q, b11 = a[ 1 ][ 1 ] - q, b22 = a[ 2 ][ 2 ] - q;
+		final double p = Math.sqrt( ( b00 * b00 + b11 * b11 + b22 * b22 + 2 * p1 ) / 6 );
+
+		final double det = b00 * ( b11 * b22 - a[ 1 ][ 2 ] * a[ 1 ][ 2 ] )
+				- a[ 0 ][ 1 ] * ( a[ 0 ][ 1 ] * b22 - a[ 1 ][ 2 ] * a[ 0 ][ 2 ] )
+				+ a[ 0 ][ 2 ] * ( a[ 0 ][ 1 ] * a[ 1 ][ 2 ] - b11 * a[ 0 ][ 2 ] );
+		final double r = det / ( 2 * p * p * p );
+
+		final double phi;
+		if ( r <= -1 ) phi = Math.PI / 3;
+		else if ( r >= 1 ) phi = 0;
+		else phi = Math.acos( r ) / 3;
+
+		eigenvalues[ 0 ] = q + 2 * p * Math.cos( phi );
+		eigenvalues[ 2 ] = q + 2 * p * Math.cos( phi + 2 * Math.PI / 3 );
+		eigenvalues[ 1 ] = 3 * q - eigenvalues[ 0 ] - eigenvalues[ 2 ];
+	}
+
+	/**
+	 * Computes the normalized eigenvector of a symmetric 3x3 matrix for the given eigenvalue,
+	 * as the largest cross product of two rows of ( A - eigenvalue * I ).
+	 */
+	public static void majorEigenvector( double[][] a, double eigenvalue, double[] eigenvector )
+	{
+		final double[] r0 = { a[ 0 ][ 0 ] - eigenvalue, a[ 0 ][ 1 ], a[ 0 ][ 2 ] };
+		final double[] r1 = { a[ 1 ][ 0 ], a[ 1 ][ 1 ] - eigenvalue, a[ 1 ][ 2 ] };
+		final double[] r2 = { a[ 2 ][ 0 ], a[ 2 ][ 1 ], a[ 2 ][ 2 ] - eigenvalue };
+
+		final double[][] candidates = { cross( r0, r1 ), cross( r0, r2 ), cross( r1, r2 ) };
+		double maxNorm = 0;
+		Arrays.fill( eigenvector, 0 );
+		for ( double[] candidate : candidates )
+		{
+			final double norm = Math.sqrt( candidate[ 0 ] * candidate[ 0 ] + candidate[ 1 ] * candidate[ 1 ] + candidate[ 2 ] * candidate[ 2 ] );
+			if ( norm > maxNorm )
+			{
+				maxNorm = norm;
+				for ( int d = 0; d < 3; d++ )
+					eigenvector[ d ] = candidate[ d ] / norm;
+			}
+		}
+
+		if ( maxNorm == 0 ) // degenerate, e.g. isotropic
+			eigenvector[ 0 ] = 1;
+	}
+
+	private static double[] cross( double[] a, double[] b )
+	{
+		return new double[]{
+				a[ 1 ] * b[ 2 ] - a[ 2 ] * b[ 1 ],
+				a[ 2 ] * b[ 0 ] - a[ 0 ] * b[ 2 ],
+				a[ 0 ] * b[ 1 ] - a[ 1 ] * b[ 0 ] };
+	}
+
+	private int indexOf( int label )
+	{
+		if ( label == lastLabel && lastIndex >= 0 ) return lastIndex;
+
+		final int index = labelToIndex.add( label );
+		if ( index == numPixels.length )
+			allocate( 2 * numPixels.length );
+
+		lastLabel = label;
+		lastIndex = index;
+		return index;
+	}
+
+	private void allocate( int capacity )
+	{
+		numPixels = numPixels == null ? new long[ capacity ] : Arrays.copyOf( numPixels, capacity );
+		facesX = facesX == null ? new long[ capacity ] : Arrays.copyOf( facesX, capacity );
+		facesY = facesY == null ? new long[ capacity ] : Arrays.copyOf( facesY, capacity );
+		facesZ = facesZ == null ? new long[ capacity ] : Arrays.copyOf( facesZ, capacity );
+		sumX = grow( sumX, capacity );
+		sumY = grow( sumY, capacity );
+		sumZ = grow( sumZ, capacity );
+		sumXX = grow( sumXX, capacity );
+		sumYY = grow( sumYY, capacity );
+		sumZZ = grow( sumZZ, capacity );
+		sumXY = grow( sumXY, capacity );
+		sumXZ = grow( sumXZ, capacity );
+		sumYZ = grow( sumYZ, capacity );
+	}
+
+	private static double[] grow( double[] array, int capacity )
+	{
+		return array == null ? new double[ capacity ] : Arrays.copyOf( array, capacity );
+	}
+}
@@ -0,0 +1,245 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.viewer.Source;
+import de.embl.cba.tables.Logger;
+import de.embl.cba.tables.Utils;
+import ij.measure.Calibration;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the same {@link SegmentFeatures} as the {@link LabelAnalyzer},
+ * but for (lazily loaded) label {@link Source}s that may not fit into memory.
+ * <p>
+ * The highest resolution level of the source is processed block by block,
+ * where the blocks are the cells of the underlying cell image, if available.
+ * The blocks are distributed dynamically onto the threads, each of which
+ * accumulates into its own {@link SegmentFeaturesAccumulator}.
+ * Thus, at any time, only a few blocks per thread need to be in memory.
+ */
+public class SourceLabelAnalyzer
+{
+	public static final int[] DEFAULT_BLOCK_SIZE = new int[]{ 64, 64, 64 };
+
+	public static Map< Integer, SegmentFeatures > analyzeLabels( Source< ? extends RealType< ? > > labels, int t )
+	{
+		return analyzeLabels( labels, new ArrayList<>(), t, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @param intensities
+	 *            the intensity channels, which must have the same dimensions as the labels at level 0
+	 */
+	public static Map< Integer, SegmentFeatures > analyzeLabels( Source< ? extends RealType< ? > > labels, List< Source< ? extends RealType< ? > > > intensities, int t, int numThreads )
+	{
+		return analyzeLabels( labels, intensities, t, numThreads, false );
+	}
+
+	/**
+	 * @param computeQuantiles
+	 *            whether to compute the approximate median and 95th percentile of the intensities
+	 */
+	public static Map< Integer, SegmentFeatures > analyzeLabels( Source< ? extends RealType< ? > > labels, List< Source< ? extends RealType< ? > > > intensities, int t, int numThreads, boolean computeQuantiles )
+	{
+		return analyzeLabels( labels, intensities, t, numThreads, computeQuantiles, new FeatureComputationJob( "Label analysis of " + labels.getName() ) );
+	}
+
+	/**
+	 * As {@link #analyzeLabels(Source, List, int, int, boolean)}, reporting the progress to the job.
+	 *
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public static Map< Integer, SegmentFeatures > analyzeLabels( Source< ? extends RealType< ? > > labels, List< Source< ? extends RealType< ? > > > intensities, int t, int numThreads, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		job.start( Intervals.numElements( labels.getSource( t, 0 ) ) );
+		final Map< Integer, SegmentFeatures > labelToFeatures = analyze( labels, intensities, t, numThreads, computeQuantiles, job );
+		job.finish();
+		Logger.info( job.getSummary() );
+		return labelToFeatures;
+	}
+
+	/**
+	 * Analyzes the frames one after the other, as one job over the voxels of all frames.
+	 *
+	 * @return the features per frame and label; frames are zero-based
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public static Map< Integer, Map< Integer, SegmentFeatures > > analyzeFrames( Source< ? extends RealType< ? > > labels, List< Source< ? extends RealType< ? > > > intensities, int numFrames, int numThreads, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		long numVoxels = 0;
+		for ( int t = 0; t < numFrames; t++ )
+			numVoxels += Intervals.numElements( labels.getSource( t, 0 ) );
+		job.start( numVoxels );
+
+		final Map< Integer, Map< Integer, SegmentFeatures > > frameToFeatures = new TreeMap<>();
+		for ( int t = 0; t < numFrames; t++ )
+			frameToFeatures.put( t, analyze( labels, intensities, t, numThreads, computeQuantiles, job ) );
+
+		job.finish();
+		Logger.info( job.getSummary() );
+		return frameToFeatures;
+	}
+
+	/**
+	 * Analyzes one frame, reporting the processed voxels to the job, which is started and finished by the caller.
+	 */
+	private static Map< Integer, SegmentFeatures > analyze( Source< ? extends RealType< ? > > labels, List< Source< ? extends RealType< ? > > > intensities, int t, int numThreads, boolean computeQuantiles, FeatureComputationJob job )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > labelsRAI = labels.getSource( t, 0 );
+		final List< RandomAccessibleInterval< ? extends RealType< ? > > > intensityRAIs = new ArrayList<>();
+		for ( Source< ? extends RealType< ? > > intensity : intensities )
+		{
+			final RandomAccessibleInterval< ? extends RealType< ? > > intensityRAI = intensity.getSource( t, 0 );
+			if ( ! Intervals.equals( labelsRAI, intensityRAI ) )
+				throw new IllegalArgumentException( "The intensity source " + intensity.getName() + " does not have the same dimensions as the label source " + labels.getName() );
+			intensityRAIs.add( intensityRAI );
+		}
+
+		final List< Interval > blocks = getBlocks( labelsRAI );
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int numTasks = Math.max( 1, Math.min( numThreads, blocks.size() ) );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numTasks );
+		try
+		{
+			final List< Future< SegmentFeaturesAccumulator > > futures = new ArrayList<>();
+			for ( int task = 0; task < numTasks; task++ )
+			{
+				futures.add( executorService.submit( () -> {
+					final SegmentFeaturesAccumulator accumulator = new SegmentFeaturesAccumulator( intensityRAIs.size(), computeQuantiles );
+					for ( int block = nextBlock.getAndIncrement(); block < blocks.size(); block = nextBlock.getAndIncrement() )
+					{
+						job.checkCancelled();
+						analyzeBlock( labelsRAI, intensityRAIs, blocks.get( block ), accumulator );
+						job.addProcessedVoxels( Intervals.numElements( blocks.get( block ) ) );
+					}
+					return accumulator;
+				} ) );
+			}
+
+			final SegmentFeaturesAccumulator accumulator = futures.get( 0 ).get();
+			for ( int task = 1; task < numTasks; task++ )
+				accumulator.merge( futures.get( task ).get() );
+
+			Logger.info( "Label analysis of frame " + t + " of " + labels.getName() + ": " + accumulator.getMemoryReport() );
+
+			return accumulator.getFeatures( getCalibration( labels ) );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the labels of " + labels.getName(), e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the cells of the image, if it is a cell image, otherwise
+	 *         a grid of blocks of {@link #DEFAULT_BLOCK_SIZE}
+	 */
+	public static List< Interval > getBlocks( RandomAccessibleInterval< ? > rai )
+	{
+		final int numDimensions = rai.numDimensions();
+		final long[] dimensions = rai.dimensionsAsLongArray();
+		final int[] blockSize = new int[ numDimensions ];
+
+		if ( rai instanceof AbstractCellImg )
+		{
+			final CellGrid cellGrid = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid();
+			cellGrid.cellDimensions( blockSize );
+		}
+		else
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+				blockSize[ d ] = DEFAULT_BLOCK_SIZE[ Math.min( d, DEFAULT_BLOCK_SIZE.length - 1 ) ];
+		}
+
+		final long[] numBlocks = new long[ numDimensions ];
+		for ( int d = 0; d < numDimensions; d++ )
+			numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final List< Interval > blocks = new ArrayList<>();
+		final long[] blockPosition = new long[ numDimensions ];
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+		final long numElements = Intervals.numElements( numBlocks );
+		for ( long i = 0; i < numElements; i++ )
+		{
+			long remainder = i;
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				blockPosition[ d ] = remainder % numBlocks[ d ];
+				remainder /= numBlocks[ d ];
+				min[ d ] = rai.min( d ) + blockPosition[ d ] * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ] - 1, rai.max( d ) );
+			}
+			blocks.add( new FinalInterval( min, max ) );
+		}
+
+		return blocks;
+	}
+
+	public static Calibration getCalibration( Source< ? > source )
+	{
+		final double[] voxelSpacing = Utils.getVoxelSpacings( source ).get( 0 );
+		final Calibration calibration = new Calibration();
+		calibration.pixelWidth = voxelSpacing[ 0 ];
+		calibration.pixelHeight = voxelSpacing[ 1 ];
+		calibration.pixelDepth = voxelSpacing[ 2 ];
+		return calibration;
+	}
+
+	private static void analyzeBlock(
+			RandomAccessibleInterval< ? extends RealType< ? > > labels,
+			List< RandomAccessibleInterval< ? extends RealType< ? > > > intensities,
+			Interval block,
+			SegmentFeaturesAccumulator accumulator )
+	{
+		final int numChannels = intensities.size();
+		final Cursor< ? extends RealType< ? > > labelCursor = Views.flatIterable( Views.interval( labels, block ) ).localizingCursor();
+		final List< Cursor< ? extends RealType< ? > > > intensityCursors = new ArrayList<>();
+		for ( RandomAccessibleInterval< ? extends RealType< ? > > intensity : intensities )
+			intensityCursors.add( Views.flatIterable( Views.interval( intensity, block ) ).cursor() );
+
+		while ( labelCursor.hasNext() )
+		{
+			final int label = ( int ) labelCursor.next().getRealDouble();
+			for ( int c = 0; c < numChannels; c++ )
+				intensityCursors.get( c ).fwd();
+
+			if ( label <= 0 ) continue;
+
+			final int index = accumulator.add(
+					label,
+					labelCursor.getIntPosition( 0 ),
+					labelCursor.getIntPosition( 1 ),
+					labelCursor.numDimensions() > 2 ? labelCursor.getIntPosition( 2 ) : 0 );
+
+			for ( int c = 0; c < numChannels; c++ )
+				accumulator.addIntensity( index, c, intensityCursors.get( c ).get().getRealDouble() );
+		}
+	}
+}
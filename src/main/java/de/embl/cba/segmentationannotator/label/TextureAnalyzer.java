@@ -0,0 +1,318 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.viewer.Source;
+import de.embl.cba.tables.Logger;
+import de.embl.cba.tables.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Computes {@link TextureFeatures} of the segments in one frame of a label {@link Source}.
+ * <p>
+ * For each segment, the bounding box is cropped from the label and intensity sources,
+ * the intensities within the segment are quantized into {@link #NUM_GRAY_LEVELS} levels
+ * between the minimal and maximal intensity of the segment, and one symmetric
+ * gray level co-occurrence matrix is accumulated over all nearest neighbour directions
+ * (4 in 2D, 13 in 3D). Voxel pairs are only counted if both voxels belong to the segment.
+ * <p>
+ * The segments are very different in size, thus they are distributed onto the threads
+ * by a work-stealing {@link ForkJoinPool}.
+ */
+public class TextureAnalyzer
+{
+	public static final int NUM_GRAY_LEVELS = 16;
+
+	private static final int[][] OFFSETS_2D = {
+			{ 1, 0, 0 }, { 0, 1, 0 }, { 1, 1, 0 }, { -1, 1, 0 } };
+
+	private static final int[][] OFFSETS_3D = {
+			{ 1, 0, 0 }, { 0, 1, 0 }, { 1, 1, 0 }, { -1, 1, 0 },
+			{ 0, 0, 1 }, { 1, 0, 1 }, { -1, 0, 1 }, { 0, 1, 1 }, { 0, -1, 1 },
+			{ 1, 1, 1 }, { -1, 1, 1 }, { 1, -1, 1 }, { -1, -1, 1 } };
+
+	/**
+	 * @param intensities
+	 *            the intensity channels, which must have the same dimensions as the labels at level 0
+	 * @param labelToFeatures
+	 *            the features of the segments in this frame, as computed by the {@link LabelAnalyzer}
+	 *            or {@link SourceLabelAnalyzer} with the same intensity channels; the bounding boxes and
+	 *            intensity ranges are taken from there
+	 * @return the texture features per label
+	 */
+	public static Map< Integer, TextureFeatures > analyzeTextures(
+			Source< ? extends RealType< ? > > labels,
+			List< Source< ? extends RealType< ? > > > intensities,
+			int t,
+			Map< Integer, SegmentFeatures > labelToFeatures,
+			int numThreads )
+	{
+		final FeatureComputationJob job = new FeatureComputationJob( "Texture analysis of " + labels.getName() );
+		job.start( getNumVoxels( labels, t, labelToFeatures ) );
+		final Map< Integer, TextureFeatures > labelToTexture = analyze( labels, intensities, t, labelToFeatures, numThreads, job );
+		job.finish();
+		return labelToTexture;
+	}
+
+	/**
+	 * Analyzes the frames one after the other, as one job over the bounding boxes of all segments.
+	 *
+	 * @param frameToLabelToFeatures
+	 *            the features of the segments per frame, see {@link #analyzeTextures}
+	 * @return the texture features per frame and label
+	 * @throws CancellationException
+	 *             if the job is cancelled
+	 */
+	public static Map< Integer, Map< Integer, TextureFeatures > > analyzeFrames(
+			Source< ? extends RealType< ? > > labels,
+			List< Source< ? extends RealType< ? > > > intensities,
+			Map< Integer, Map< Integer, SegmentFeatures > > frameToLabelToFeatures,
+			int numThreads,
+			FeatureComputationJob job )
+	{
+		long numVoxels = 0;
+		for ( Integer t : frameToLabelToFeatures.keySet() )
+			numVoxels += getNumVoxels( labels, t, frameToLabelToFeatures.get( t ) );
+		job.start( numVoxels );
+
+		final Map< Integer, Map< Integer, TextureFeatures > > frameToLabelToTexture = new TreeMap<>();
+		for ( Integer t : frameToLabelToFeatures.keySet() )
+			frameToLabelToTexture.put( t, analyze( labels, intensities, t, frameToLabelToFeatures.get( t ), numThreads, job ) );
+
+		job.finish();
+		Logger.info( job.getSummary() );
+		return frameToLabelToTexture;
+	}
+
+	/**
+	 * Analyzes one frame, reporting the voxels of the bounding box of each segment to the job,
+	 * which is started and finished by the caller.
+	 */
+	private static Map< Integer, TextureFeatures > analyze(
+			Source< ? extends RealType< ? > > labels,
+			List< Source< ? extends RealType< ? > > > intensities,
+			int t,
+			Map< Integer, SegmentFeatures > labelToFeatures,
+			int numThreads,
+			FeatureComputationJob job )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > labelsRAI = labels.getSource( t, 0 );
+		final RandomAccessibleInterval< ? extends RealType< ? > >[] intensityRAIs = new RandomAccessibleInterval[ intensities.size() ];
+		for ( int c = 0; c < intensities.size(); c++ )
+		{
+			intensityRAIs[ c ] = intensities.get( c ).getSource( t, 0 );
+			if ( ! Intervals.equals( labelsRAI, intensityRAIs[ c ] ) )
+				throw new IllegalArgumentException( "The intensity source " + intensities.get( c ).getName() + " does not have the same dimensions as the label source " + labels.getName() );
+		}
+
+		final double[] voxelSpacing = Utils.getVoxelSpacings( labels ).get( 0 );
+		final boolean is2D = labelsRAI.numDimensions() < 3 || labelsRAI.dimension( 2 ) == 1;
+		final int[][] offsets = is2D ? OFFSETS_2D : OFFSETS_3D;
+
+		final int[] segmentLabels = labelToFeatures.keySet().stream().mapToInt( Integer::intValue ).toArray();
+		final TextureFeatures[] textureFeatures = new TextureFeatures[ segmentLabels.length ];
+
+		final long start = System.currentTimeMillis();
+		final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+		try
+		{
+			pool.submit( () -> IntStream.range( 0, segmentLabels.length ).parallel().forEach( i ->
+			{
+				job.checkCancelled();
+				final SegmentFeatures features = labelToFeatures.get( segmentLabels[ i ] );
+				textureFeatures[ i ] = analyzeSegment( segmentLabels[ i ], features, labelsRAI, intensityRAIs, voxelSpacing, offsets );
+				job.addProcessedVoxels( Intervals.numElements( getBoundingBox( features, labelsRAI, voxelSpacing ) ) );
+			} ) ).get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			if ( job.isCancelled() ) throw new CancellationException( job.getName() + " has been cancelled." );
+			throw new RuntimeException( "Could not analyze the textures of " + labels.getName(), e );
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		final double seconds = Math.max( 1, System.currentTimeMillis() - start ) / 1000.0;
+		Logger.info( String.format( "Texture features of %d segments and %d channels in frame %d of %s: %.1f s, %.0f segments/s",
+				segmentLabels.length, intensityRAIs.length, t, labels.getName(), seconds, segmentLabels.length / seconds ) );
+
+		final Map< Integer, TextureFeatures > labelToTexture = new HashMap<>();
+		for ( int i = 0; i < segmentLabels.length; i++ )
+			labelToTexture.put( segmentLabels[ i ], textureFeatures[ i ] );
+		return labelToTexture;
+	}
+
+	private static TextureFeatures analyzeSegment(
+			int label,
+			SegmentFeatures features,
+			RandomAccessibleInterval< ? extends RealType< ? > > labels,
+			RandomAccessibleInterval< ? extends RealType< ? > >[] intensities,
+			double[] voxelSpacing,
+			int[][] offsets )
+	{
+		final FinalInterval boundingBox = getBoundingBox( features, labels, voxelSpacing );
+		final int[] size = new int[ 3 ];
+		long numVoxels = 1;
+		for ( int d = 0; d < 3; d++ )
+		{
+			size[ d ] = d < boundingBox.numDimensions() ? ( int ) boundingBox.dimension( d ) : 1;
+			numVoxels *= size[ d ];
+		}
+		if ( numVoxels > Integer.MAX_VALUE )
+			throw new RuntimeException( "The bounding box of segment " + label + " is too large for texture analysis." );
+
+		// the mask of the segment within its bounding box
+		final boolean[] mask = new boolean[ ( int ) numVoxels ];
+		final Cursor< ? extends RealType< ? > > labelCursor = Views.flatIterable( Views.interval( labels, boundingBox ) ).cursor();
+		for ( int i = 0; labelCursor.hasNext(); i++ )
+			mask[ i ] = ( int ) labelCursor.next().getRealDouble() == label;
+
+		final TextureFeatures textureFeatures = new TextureFeatures( intensities.length );
+		final int[] grayLevels = new int[ mask.length ];
+		final double[] glcm = new double[ NUM_GRAY_LEVELS * NUM_GRAY_LEVELS ];
+
+		for ( int c = 0; c < intensities.length; c++ )
+		{
+			final double min = features.minIntensity[ c ];
+			final double max = features.maxIntensity[ c ];
+			final double scale = max > min ? NUM_GRAY_LEVELS / ( max - min ) : 0;
+
+			final Cursor< ? extends RealType< ? > > intensityCursor = Views.flatIterable( Views.interval( intensities[ c ], boundingBox ) ).cursor();
+			for ( int i = 0; intensityCursor.hasNext(); i++ )
+			{
+				final double value = intensityCursor.next().getRealDouble();
+				grayLevels[ i ] = mask[ i ] ? Math.min( NUM_GRAY_LEVELS - 1, ( int ) ( ( value - min ) * scale ) ) : -1;
+			}
+
+			accumulateCooccurrences( grayLevels, size, offsets, glcm );
+			computeHaralickFeatures( glcm, textureFeatures, c );
+		}
+
+		return textureFeatures;
+	}
+
+	private static long getNumVoxels( Source< ? extends RealType< ? > > labels, int t, Map< Integer, SegmentFeatures > labelToFeatures )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > labelsRAI = labels.getSource( t, 0 );
+		final double[] voxelSpacing = Utils.getVoxelSpacings( labels ).get( 0 );
+		long numVoxels = 0;
+		for ( SegmentFeatures features : labelToFeatures.values() )
+			numVoxels += Intervals.numElements( getBoundingBox( features, labelsRAI, voxelSpacing ) );
+		return numVoxels;
+	}
+
+	private static FinalInterval getBoundingBox( SegmentFeatures features, RandomAccessibleInterval< ? > labels, double[] voxelSpacing )
+	{
+		final double[] calibratedMin = { features.bbMinX, features.bbMinY, features.bbMinZ };
+		final double[] calibratedMax = { features.bbMaxX, features.bbMaxY, features.bbMaxZ };
+
+		final int numDimensions = labels.numDimensions();
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			if ( d < 3 )
+			{
+				min[ d ] = Math.max( labels.min( d ), Math.round( calibratedMin[ d ] / voxelSpacing[ d ] ) );
+				max[ d ] = Math.min( labels.max( d ), Math.round( calibratedMax[ d ] / voxelSpacing[ d ] ) );
+			}
+			else
+			{
+				min[ d ] = labels.min( d );
+				max[ d ] = labels.max( d );
+			}
+		}
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Accumulates the symmetric co-occurrence matrix over all offsets.
+	 *
+	 * @param grayLevels
+	 *            the quantized intensities in flat iteration order, -1 outside of the segment
+	 */
+	private static void accumulateCooccurrences( int[] grayLevels, int[] size, int[][] offsets, double[] glcm )
+	{
+		Arrays.fill( glcm, 0 );
+
+		for ( int z = 0, i = 0; z < size[ 2 ]; z++ )
+		{
+			for ( int y = 0; y < size[ 1 ]; y++ )
+			{
+				for ( int x = 0; x < size[ 0 ]; x++, i++ )
+				{
+					final int level = grayLevels[ i ];
+					if ( level < 0 ) continue;
+
+					for ( int[] offset : offsets )
+					{
+						final int nx = x + offset[ 0 ];
+						final int ny = y + offset[ 1 ];
+						final int nz = z + offset[ 2 ];
+						if ( nx < 0 || nx >= size[ 0 ] || ny < 0 || ny >= size[ 1 ] || nz >= size[ 2 ] ) continue;
+
+						final int neighborLevel = grayLevels[ ( nz * size[ 1 ] + ny ) * size[ 0 ] + nx ];
+						if ( neighborLevel < 0 ) continue;
+
+						glcm[ level * NUM_GRAY_LEVELS + neighborLevel ]++;
+						glcm[ neighborLevel * NUM_GRAY_LEVELS + level ]++;
+					}
+				}
+			}
+		}
+	}
+
+	private static void computeHaralickFeatures( double[] glcm, TextureFeatures features, int channel )
+	{
+		double total = 0;
+		for ( double count : glcm )
+			total += count;
+
+		// segments without any neighbouring voxel pairs have no texture
+		if ( total == 0 ) return;
+
+		// the matrix is symmetric, thus the marginal means and variances are equal
+		double mean = 0;
+		for ( int i = 0; i < NUM_GRAY_LEVELS; i++ )
+			for ( int j = 0; j < NUM_GRAY_LEVELS; j++ )
+				mean += i * glcm[ i * NUM_GRAY_LEVELS + j ] / total;
+
+		double variance = 0, contrast = 0, covariance = 0, energy = 0, homogeneity = 0, entropy = 0;
+		for ( int i = 0; i < NUM_GRAY_LEVELS; i++ )
+		{
+			for ( int j = 0; j < NUM_GRAY_LEVELS; j++ )
+			{
+				final double p = glcm[ i * NUM_GRAY_LEVELS + j ] / total;
+				if ( p == 0 ) continue;
+				variance += ( i - mean ) * ( i - mean ) * p;
+				contrast += ( i - j ) * ( i - j ) * p;
+				covariance += ( i - mean ) * ( j - mean ) * p;
+				energy += p * p;
+				homogeneity += p / ( 1 + ( i - j ) * ( i - j ) );
+				entropy -= p * Math.log( p );
+			}
+		}
+
+		features.contrast[ channel ] = contrast;
+		// the correlation of a constant segment is undefined; report 0, because NaN breaks the classifiers
+		features.correlation[ channel ] = variance > 0 ? covariance / variance : 0;
+		features.energy[ channel ] = energy;
+		features.homogeneity[ channel ] = homogeneity;
+		features.entropy[ channel ] = entropy;
+	}
+}
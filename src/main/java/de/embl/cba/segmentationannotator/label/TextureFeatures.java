@@ -0,0 +1,24 @@
+package de.embl.cba.segmentationannotator.label;
+
+/**
+ * Haralick texture features of one segment, computed from the gray level
+ * co-occurrence matrix (GLCM) of the voxels within the segment.
+ */
+public class TextureFeatures
+{
+	// one entry per intensity channel
+	public double[] contrast;
+	public double[] correlation;
+	public double[] energy;
+	public double[] homogeneity;
+	public double[] entropy;
+
+	public TextureFeatures( int numChannels )
+	{
+		contrast = new double[ numChannels ];
+		correlation = new double[ numChannels ];
+		energy = new double[ numChannels ];
+		homogeneity = new double[ numChannels ];
+		entropy = new double[ numChannels ];
+	}
+}
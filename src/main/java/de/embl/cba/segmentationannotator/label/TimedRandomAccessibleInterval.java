@@ -0,0 +1,56 @@
+package de.embl.cba.segmentationannotator.label;
+
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+
+/**
+ * Measures the time spent in {@link RandomAccess#get()} of a lazily computed view,
+ * such as the boundary neighborhood view, and adds it to the {@link RenderMetrics}.
+ * <p>
+ * Only used while the metrics are enabled, because of the cost of {@link System#nanoTime()}.
+ */
+class TimedRandomAccessibleInterval< T > extends AbstractWrappedInterval< RandomAccessibleInterval< T > > implements RandomAccessibleInterval< T >
+{
+	TimedRandomAccessibleInterval( RandomAccessibleInterval< T > source )
+	{
+		super( source );
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new TimedRandomAccess<>( sourceInterval.randomAccess() );
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( Interval interval )
+	{
+		return new TimedRandomAccess<>( sourceInterval.randomAccess( interval ) );
+	}
+
+	private static class TimedRandomAccess< T > extends DelegatingRandomAccess< T >
+	{
+		TimedRandomAccess( RandomAccess< T > access )
+		{
+			super( access );
+		}
+
+		@Override
+		public T get()
+		{
+			final long start = System.nanoTime();
+			final T value = access.get();
+			RenderMetrics.countBoundaryVoxel( System.nanoTime() - start );
+			return value;
+		}
+
+		@Override
+		public TimedRandomAccess< T > copy()
+		{
+			return new TimedRandomAccess<>( access.copyRandomAccess() );
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import de.embl.cba.segmentationannotator.bdv.RenderMetrics;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * One resolution level of a volatile label {@link Source}, where the voxels
+ * that are not loaded yet take the label of the finest coarser level that is loaded.
+ * <p>
+ * This is only used where invalid voxels are actually read, i.e. by the boundaries
+ * that are computed on the fly from the neighborhoods of the voxels, such that
+ * voxels that are not loaded do not appear as spurious boundaries.
+ * For plain rendering, BDV's hierarchy projector only converts valid voxels
+ * and already falls back to coarser levels by itself.
+ * <p>
+ * The returned fallback labels are still marked as invalid, such that
+ * the finer data keeps being requested.
+ */
+class VolatileFallbackRandomAccessibleInterval< T extends NumericType< T > & RealType< T > > extends AbstractWrappedInterval< RandomAccessibleInterval< T > > implements RandomAccessibleInterval< T >
+{
+	private final Source< T > source;
+	private final int t;
+
+	// maps voxel coordinates of the level to voxel coordinates of the coarser levels
+	private final AffineTransform3D[] levelToCoarserLevels;
+
+	VolatileFallbackRandomAccessibleInterval( Source< T > source, int t, int level )
+	{
+		super( source.getSource( t, level ) );
+		this.source = source;
+		this.t = t;
+
+		final AffineTransform3D levelToWorld = new AffineTransform3D();
+		source.getSourceTransform( t, level, levelToWorld );
+
+		final int numCoarserLevels = source.getNumMipmapLevels() - level - 1;
+		levelToCoarserLevels = new AffineTransform3D[ numCoarserLevels ];
+		for ( int i = 0; i < numCoarserLevels; i++ )
+		{
+			final AffineTransform3D coarserLevelToWorld = new AffineTransform3D();
+			source.getSourceTransform( t, level + 1 + i, coarserLevelToWorld );
+			levelToCoarserLevels[ i ] = coarserLevelToWorld.inverse().concatenate( levelToWorld );
+		}
+	}
+
+	static boolean isApplicable( Source< ? > source, int level )
+	{
+		return source.getType() instanceof Volatile && level < source.getNumMipmapLevels() - 1;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new FallbackRandomAccess( sourceInterval.randomAccess() );
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( Interval interval )
+	{
+		return new FallbackRandomAccess( sourceInterval.randomAccess( interval ) );
+	}
+
+	private class FallbackRandomAccess extends DelegatingRandomAccess< T >
+	{
+		private final RealRandomAccess< T >[] coarserAccesses;
+		private final double[] position = new double[ 3 ];
+		private final double[] coarserPosition = new double[ 3 ];
+		private final T fallback;
+
+		FallbackRandomAccess( RandomAccess< T > access )
+		{
+			super( access );
+			coarserAccesses = new RealRandomAccess[ levelToCoarserLevels.length ];
+			fallback = source.getType().createVariable();
+		}
+
+		@Override
+		public T get()
+		{
+			final T value = access.get();
+			if ( ( ( Volatile< ? > ) value ).isValid() ) return value;
+
+			access.localize( position );
+			for ( int i = 0; i < coarserAccesses.length; i++ )
+			{
+				levelToCoarserLevels[ i ].apply( position, coarserPosition );
+				final RealRandomAccess< T > coarserAccess = getCoarserAccess( i );
+				coarserAccess.setPosition( coarserPosition );
+				final T coarserValue = coarserAccess.get();
+				if ( ( ( Volatile< ? > ) coarserValue ).isValid() )
+				{
+					RenderMetrics.countFallbackVoxel();
+					fallback.set( coarserValue );
+					( ( Volatile< ? > ) fallback ).setValid( false );
+					return fallback;
+				}
+			}
+
+			return value;
+		}
+
+		private RealRandomAccess< T > getCoarserAccess( int i )
+		{
+			// created on demand, because most voxels are valid
+			if ( coarserAccesses[ i ] == null )
+			{
+				final int level = source.getNumMipmapLevels() - levelToCoarserLevels.length + i;
+				coarserAccesses[ i ] = source.getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ).realRandomAccess();
+			}
+			return coarserAccesses[ i ];
+		}
+
+		@Override
+		public FallbackRandomAccess copy()
+		{
+			return new FallbackRandomAccess( access.copyRandomAccess() );
+		}
+	}
+}
@@ -51,6 +51,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 public class SegmentsVolumeView< S extends ImageSegment > implements ColoringListener, SelectionListener< S >
 {
@@ -75,6 +76,7 @@ public class SegmentsVolumeView< S extends ImageSegment > implements ColoringLis
 	private final MeshCreator< ImageSegment > meshCreator;
 	private Window window;
 	private Image3DUniverse universe;
+	private volatile Predicate< S > segmentFilter;
 
 	public SegmentsVolumeView(
 			final SelectionModel< S > selectionModel,
@@ -142,6 +144,24 @@ public class SegmentsVolumeView< S extends ImageSegment > implements ColoringLis
 		this.maxNumSegmentVoxels = maxNumSegmentVoxels;
 	}
 
+	/**
+	 * @param segmentFilter
+	 *            the selected segments that are shown, or null to show all selected segments
+	 */
+	public void setSegmentFilter( Predicate< S > segmentFilter )
+	{
+		this.segmentFilter = segmentFilter;
+
+		if ( showSegments )
+			new Thread( () -> updateView( false ) ).start();
+	}
+
+	private boolean isVisible( S segment )
+	{
+		final Predicate< S > filter = segmentFilter;
+		return filter == null || filter.test( segment );
+	}
+
 	private void updateSegmentColors()
 	{
 		for ( S segment : segmentToContent.keySet() )
@@ -179,6 +199,12 @@ public class SegmentsVolumeView< S extends ImageSegment > implements ColoringLis
 
 		for ( S segment : selected )
 		{
+			if ( ! isVisible( segment ) )
+			{
+				if ( segmentToContent.containsKey( segment ) ) removeSegment( segment );
+				continue;
+			}
+
 			if ( segment.timePoint() == currentTimePoint )
 			{
 				if ( recomputeMeshes ) removeSegment( segment );
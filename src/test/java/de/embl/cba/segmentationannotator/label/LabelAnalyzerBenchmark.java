@@ -0,0 +1,98 @@
+package de.embl.cba.segmentationannotator.label;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Compares the type-specialized label analysis kernels with the generic
+ * {@link ImageProcessor#getf} path on synthetic 8-bit, 16-bit and 32-bit label stacks.
+ * <p>
+ * Both paths are run single-threaded on the whole stack, such that only the voxel access differs.
+ */
+public class LabelAnalyzerBenchmark
+{
+	private static final int SIZE_X = 512;
+	private static final int SIZE_Y = 512;
+	private static final int SIZE_Z = 64;
+	private static final int SEGMENT_SIZE = 16;
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 10;
+
+	public static void main( String[] args )
+	{
+		benchmark( "8-bit", createLabelStack( 8 ) );
+		benchmark( "16-bit", createLabelStack( 16 ) );
+		benchmark( "32-bit", createLabelStack( 32 ) );
+	}
+
+	private static void benchmark( String name, ImageStack labels )
+	{
+		final ImageStack[] intensities = new ImageStack[]{ createLabelStack( 16 ) };
+		final int[][] labelStackIndices = LabelAnalyzer.getStackIndices( SIZE_Z );
+		final int[][][] intensityStackIndices = new int[][][]{ LabelAnalyzer.getStackIndices( SIZE_Z ) };
+
+		for ( int numChannels = 0; numChannels <= 1; numChannels++ )
+		{
+			final ImageStack[] channels = Arrays.copyOf( intensities, numChannels );
+			final double genericMillis = measure( labels, labelStackIndices, channels, intensityStackIndices, false );
+			final double specializedMillis = measure( labels, labelStackIndices, channels, intensityStackIndices, true );
+
+			System.out.println( String.format( "%s labels, %d intensity channels: generic %.1f ms, specialized %.1f ms, speedup %.2f",
+					name, numChannels, genericMillis, specializedMillis, genericMillis / specializedMillis ) );
+		}
+	}
+
+	/**
+	 * @return the median run time in milliseconds
+	 */
+	private static double measure( ImageStack labels, int[][] labelStackIndices, ImageStack[] intensities, int[][][] intensityStackIndices, boolean specialized )
+	{
+		final double[] millis = new double[ MEASURED_ITERATIONS ];
+		for ( int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; iteration++ )
+		{
+			final long start = System.nanoTime();
+			final SegmentFeaturesAccumulator accumulator = LabelAnalyzer.analyzeSlices( labels, labelStackIndices, intensities, intensityStackIndices, 0, 0, 1, specialized, false, new FeatureComputationJob( "Benchmark" ) );
+			final long stop = System.nanoTime();
+
+			if ( accumulator.getNumLabels() == 0 ) throw new RuntimeException( "No labels found." );
+			if ( iteration >= 0 ) millis[ iteration ] = ( stop - start ) / 1.0E6;
+		}
+		Arrays.sort( millis );
+		return millis[ MEASURED_ITERATIONS / 2 ];
+	}
+
+	/**
+	 * Creates cubic segments of {@link #SEGMENT_SIZE} voxels, separated by one voxel of background.
+	 */
+	private static ImageStack createLabelStack( int bitDepth )
+	{
+		final int segmentsX = SIZE_X / SEGMENT_SIZE;
+		final int segmentsY = SIZE_Y / SEGMENT_SIZE;
+		final int maxLabel = bitDepth == 8 ? 255 : Integer.MAX_VALUE;
+
+		final ImageStack stack = new ImageStack( SIZE_X, SIZE_Y );
+		for ( int z = 0; z < SIZE_Z; z++ )
+		{
+			final ImageProcessor slice = bitDepth == 8 ? new ByteProcessor( SIZE_X, SIZE_Y ) : bitDepth == 16 ? new ShortProcessor( SIZE_X, SIZE_Y ) : new FloatProcessor( SIZE_X, SIZE_Y );
+			if ( z % SEGMENT_SIZE != 0 )
+			{
+				for ( int y = 0; y < SIZE_Y; y++ )
+				{
+					for ( int x = 0; x < SIZE_X; x++ )
+					{
+						if ( x % SEGMENT_SIZE == 0 || y % SEGMENT_SIZE == 0 ) continue;
+						final int segment = ( ( z / SEGMENT_SIZE ) * segmentsY + y / SEGMENT_SIZE ) * segmentsX + x / SEGMENT_SIZE;
+						slice.setf( x, y, 1 + segment % maxLabel );
+					}
+				}
+			}
+			stack.addSlice( slice );
+		}
+		return stack;
+	}
+}
@@ -0,0 +1,85 @@
+package de.embl.cba.segmentationannotator.label;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LabelIndexMapTest
+{
+	private static final int SPARSE_LABEL = 1_000_000_007;
+
+	@Test
+	public void labelsAreIndexedInInsertionOrder()
+	{
+		final LabelIndexMap map = new LabelIndexMap();
+		final int[] labels = { 5, 3, 17, 1 };
+		for ( int label : labels )
+			map.add( label );
+
+		assertTrue( map.isDense() );
+		assertEquals( labels.length, map.size() );
+		for ( int index = 0; index < labels.length; index++ )
+		{
+			assertEquals( index, map.get( labels[ index ] ) );
+			assertEquals( index, map.add( labels[ index ] ) );
+			assertEquals( labels[ index ], map.getLabel( index ) );
+		}
+		assertEquals( -1, map.get( 4 ) );
+	}
+
+	@Test
+	public void largeLabelSwitchesToSparseMode()
+	{
+		final LabelIndexMap map = new LabelIndexMap();
+		for ( int label = 1; label <= 100; label++ )
+			map.add( label );
+		map.add( SPARSE_LABEL );
+
+		assertFalse( map.isDense() );
+		assertEquals( 101, map.size() );
+		for ( int label = 1; label <= 100; label++ )
+			assertEquals( label - 1, map.get( label ) );
+		assertEquals( 100, map.get( SPARSE_LABEL ) );
+		assertEquals( -1, map.get( SPARSE_LABEL + 1 ) );
+	}
+
+	@Test
+	public void backgroundIsNeitherAddedNorFoundInDenseMode()
+	{
+		final LabelIndexMap map = new LabelIndexMap();
+		map.add( 1 );
+		map.add( 2 );
+
+		assertTrue( map.isDense() );
+		assertBackgroundIsIgnored( map );
+	}
+
+	@Test
+	public void backgroundIsNeitherAddedNorFoundInSparseMode()
+	{
+		final LabelIndexMap map = new LabelIndexMap();
+		map.add( 1 );
+		map.add( SPARSE_LABEL );
+
+		assertFalse( map.isDense() );
+		assertBackgroundIsIgnored( map );
+
+		// label 0 must not match the empty slots that are probed for absent labels
+		for ( int label = 2; label < 1000; label++ )
+			assertEquals( -1, map.get( label ) );
+	}
+
+	private static void assertBackgroundIsIgnored( LabelIndexMap map )
+	{
+		final int size = map.size();
+		for ( int label : new int[]{ 0, -1, Integer.MIN_VALUE } )
+		{
+			assertEquals( -1, map.get( label ) );
+			assertEquals( -1, map.add( label ) );
+			assertEquals( -1, map.get( label ) );
+			assertEquals( size, map.size() );
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package de.embl.cba.segmentationannotator.label;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import de.embl.cba.segmentationannotator.converter.LabelConverter;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a 4k viewport of a 3D label source, in the same way as the BDV renderer:
+ * the screen is split into tiles that are rendered concurrently, and each tile
+ * fetches the source transform, the interpolated source and converts the labels to ARGB.
+ * <p>
+ * Compares the frames per second of the {@link LabelSource} with a copy whose
+ * {@link Source#getSourceTransform} is synchronized, as it was before.
+ */
+public class LabelSourceRenderingBenchmark
+{
+	private static final int SCREEN_WIDTH = 3840;
+	private static final int SCREEN_HEIGHT = 2160;
+	private static final int TILE_SIZE = 64;
+	private static final int SIZE = 256;
+	private static final int SEGMENT_SIZE = 16;
+	private static final int WARMUP_FRAMES = 10;
+	private static final int MEASURED_FRAMES = 50;
+
+	public static void main( String[] args ) throws Exception
+	{
+		final Source< UnsignedShortType > labels = createLabelSource();
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final double synchronizedFps = measure( new SynchronizedLabelSource<>( labels ), executorService );
+			final double lockFreeFps = measure( new LabelSource<>( labels ), executorService );
+
+			System.out.println( String.format( "%d x %d viewport, %d threads: synchronized %.1f fps, lock-free %.1f fps, speedup %.2f",
+					SCREEN_WIDTH, SCREEN_HEIGHT, numThreads, synchronizedFps, lockFreeFps, lockFreeFps / synchronizedFps ) );
+		}
+		finally
+		{
+			executorService.shutdown();
+		}
+	}
+
+	private static double measure( LabelSource< UnsignedShortType > source, ExecutorService executorService ) throws Exception
+	{
+		final LabelConverter converter = new LabelConverter();
+		final int[] screen = new int[ SCREEN_WIDTH * SCREEN_HEIGHT ];
+
+		long start = 0;
+		for ( int frame = -WARMUP_FRAMES; frame < MEASURED_FRAMES; frame++ )
+		{
+			if ( frame == 0 ) start = System.nanoTime();
+			renderFrame( source, converter, getViewerTransform( frame ), screen, executorService );
+		}
+		final double seconds = ( System.nanoTime() - start ) / 1.0E9;
+
+		long checksum = 0;
+		for ( int argb : screen ) checksum += argb;
+		if ( checksum == 0 ) throw new RuntimeException( "Nothing has been rendered." );
+
+		return MEASURED_FRAMES / seconds;
+	}
+
+	private static void renderFrame( Source< UnsignedShortType > source, LabelConverter converter, AffineTransform3D viewerTransform, int[] screen, ExecutorService executorService ) throws Exception
+	{
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int tileY = 0; tileY < SCREEN_HEIGHT; tileY += TILE_SIZE )
+		{
+			for ( int tileX = 0; tileX < SCREEN_WIDTH; tileX += TILE_SIZE )
+			{
+				final int minX = tileX;
+				final int minY = tileY;
+				futures.add( executorService.submit( () -> renderTile( source, converter, viewerTransform, screen, minX, minY ) ) );
+			}
+		}
+		for ( Future< ? > future : futures )
+			future.get();
+	}
+
+	private static void renderTile( Source< UnsignedShortType > source, LabelConverter converter, AffineTransform3D viewerTransform, int[] screen, int minX, int minY )
+	{
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		source.getSourceTransform( 0, 0, sourceToScreen );
+		sourceToScreen.preConcatenate( viewerTransform );
+
+		final RealRandomAccessible< UnsignedShortType > interpolated = source.getInterpolatedSource( 0, 0, Interpolation.NEARESTNEIGHBOR );
+		final RandomAccessible< UnsignedShortType > onScreen = RealViews.affine( interpolated, sourceToScreen );
+		final RandomAccess< UnsignedShortType > access = onScreen.randomAccess();
+		final ARGBType argb = new ARGBType();
+
+		final int maxX = Math.min( minX + TILE_SIZE, SCREEN_WIDTH );
+		final int maxY = Math.min( minY + TILE_SIZE, SCREEN_HEIGHT );
+		for ( int y = minY; y < maxY; y++ )
+		{
+			access.setPosition( new long[]{ minX, y, 0 } );
+			for ( int x = minX; x < maxX; x++ )
+			{
+				converter.convert( access.get(), argb );
+				screen[ y * SCREEN_WIDTH + x ] = argb.get();
+				access.fwd( 0 );
+			}
+		}
+	}
+
+	/**
+	 * A slightly rotated view through the center of the volume, which changes with every frame.
+	 */
+	private static AffineTransform3D getViewerTransform( int frame )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.translate( -SIZE / 2.0, -SIZE / 2.0, -SIZE / 2.0 - ( frame % SIZE ) / 4.0 );
+		transform.rotate( 1, 0.3 );
+		transform.rotate( 0, 0.2 );
+		transform.scale( SCREEN_HEIGHT / ( double ) SIZE );
+		transform.translate( SCREEN_WIDTH / 2.0, SCREEN_HEIGHT / 2.0, 0 );
+		return transform;
+	}
+
+	private static Source< UnsignedShortType > createLabelSource()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( SIZE, SIZE, SIZE );
+		final int segmentsPerDimension = SIZE / SEGMENT_SIZE;
+		final RandomAccess< UnsignedShortType > access = img.randomAccess();
+		for ( int z = 0; z < SIZE; z++ )
+		{
+			for ( int y = 0; y < SIZE; y++ )
+			{
+				for ( int x = 0; x < SIZE; x++ )
+				{
+					access.setPosition( new int[]{ x, y, z } );
+					final int segment = ( ( z / SEGMENT_SIZE ) * segmentsPerDimension + y / SEGMENT_SIZE ) * segmentsPerDimension + x / SEGMENT_SIZE;
+					access.get().set( 1 + segment );
+				}
+			}
+		}
+		return new RandomAccessibleIntervalSource<>( img, new UnsignedShortType(), new AffineTransform3D(), "labels" );
+	}
+
+	private static class SynchronizedLabelSource< T extends NumericType< T > & RealType< T > > extends LabelSource< T >
+	{
+		public SynchronizedLabelSource( Source< T > source )
+		{
+			super( source );
+		}
+
+		@Override
+		public synchronized void getSourceTransform( int t, int level, AffineTransform3D transform )
+		{
+			super.getSourceTransform( t, level, transform );
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package de.embl.cba.segmentationannotator.label;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest
+{
+	private static final int NUM_VALUES = 100_000;
+	private static final int NUM_SKETCHES = 8;
+	private static final double[] QUANTILES = createQuantiles();
+
+	@Test
+	public void emptySketchReturnsNaN()
+	{
+		assertTrue( Double.isNaN( new QuantileSketch().getQuantile( 0.5 ) ) );
+	}
+
+	@Test
+	public void fewValuesGiveExactQuantiles()
+	{
+		final Random random = new Random( 1 );
+		final QuantileSketch sketch = new QuantileSketch();
+		final float[] values = new float[ QuantileSketch.DEFAULT_K / 2 ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			// includes negative values, which need the sortable bits
+			values[ i ] = ( float ) ( random.nextGaussian() * 100 );
+			sketch.add( values[ i ] );
+		}
+		Arrays.sort( values );
+
+		final double[] quantiles = sketch.getQuantiles( QUANTILES );
+		for ( int q = 0; q < QUANTILES.length; q++ )
+			assertEquals( values[ ( int ) Math.ceil( QUANTILES[ q ] * values.length ) - 1 ], quantiles[ q ], 0 );
+
+		assertEquals( values[ 0 ], sketch.getQuantile( 0 ), 0 );
+		assertEquals( values[ values.length - 1 ], sketch.getQuantile( 1 ), 0 );
+	}
+
+	@Test
+	public void rankErrorIsBounded()
+	{
+		for ( int seed = 0; seed < 5; seed++ )
+		{
+			final Random random = new Random( seed );
+			final QuantileSketch sketch = new QuantileSketch();
+			final float[] values = new float[ NUM_VALUES ];
+			for ( int i = 0; i < values.length; i++ )
+			{
+				values[ i ] = ( float ) ( random.nextGaussian() * 100 );
+				sketch.add( values[ i ] );
+			}
+			Arrays.sort( values );
+
+			assertEquals( NUM_VALUES, sketch.getCount() );
+			assertRankErrors( sketch, values );
+		}
+	}
+
+	@Test
+	public void rankErrorOfMergedSketchesIsBounded()
+	{
+		for ( int seed = 0; seed < 5; seed++ )
+		{
+			final Random random = new Random( seed );
+			final QuantileSketch[] sketches = new QuantileSketch[ NUM_SKETCHES ];
+			for ( int s = 0; s < NUM_SKETCHES; s++ )
+				sketches[ s ] = new QuantileSketch();
+
+			final float[] values = new float[ NUM_VALUES ];
+			for ( int i = 0; i < values.length; i++ )
+			{
+				// the sketches see differently distributed values
+				values[ i ] = ( float ) ( random.nextGaussian() * 100 + 50 * ( i % NUM_SKETCHES ) );
+				sketches[ i % NUM_SKETCHES ].add( values[ i ] );
+			}
+			Arrays.sort( values );
+
+			final QuantileSketch merged = sketches[ 0 ];
+			for ( int s = 1; s < NUM_SKETCHES; s++ )
+				merged.merge( sketches[ s ] );
+
+			assertEquals( NUM_VALUES, merged.getCount() );
+			assertRankErrors( merged, values );
+		}
+	}
+
+	/**
+	 * Checks the mean rank error against the 1.7 / k of the Javadoc
+	 * and the worst rank error against the bound of 5 / k.
+	 */
+	private static void assertRankErrors( QuantileSketch sketch, float[] sortedValues )
+	{
+		final double[] quantiles = sketch.getQuantiles( QUANTILES );
+		double sumErrors = 0;
+		double maxError = 0;
+		for ( int q = 0; q < QUANTILES.length; q++ )
+		{
+			final double error = rankError( sortedValues, ( float ) quantiles[ q ], QUANTILES[ q ] );
+			sumErrors += error;
+			maxError = Math.max( maxError, error );
+		}
+
+		final double meanError = sumErrors / QUANTILES.length;
+		assertTrue( "Mean rank error " + meanError, meanError <= 1.7 / QuantileSketch.DEFAULT_K );
+		assertTrue( "Max rank error " + maxError, maxError <= 5.0 / QuantileSketch.DEFAULT_K );
+	}
+
+	/**
+	 * @return the distance of the quantile to the range of ranks of the value, normalized by the number of values
+	 */
+	private static double rankError( float[] sortedValues, float value, double quantile )
+	{
+		final double rank = quantile * sortedValues.length;
+		final int minRank = firstIndexNotBelow( sortedValues, value, false );
+		final int maxRank = firstIndexNotBelow( sortedValues, value, true );
+		final double distance = rank < minRank ? minRank - rank : rank > maxRank ? rank - maxRank : 0;
+		return distance / sortedValues.length;
+	}
+
+	private static int firstIndexNotBelow( float[] sortedValues, float value, boolean inclusive )
+	{
+		int low = 0;
+		int high = sortedValues.length;
+		while ( low < high )
+		{
+			final int middle = ( low + high ) >>> 1;
+			if ( sortedValues[ middle ] < value || inclusive && sortedValues[ middle ] == value )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static double[] createQuantiles()
+	{
+		final double[] quantiles = new double[ 99 ];
+		for ( int q = 0; q < quantiles.length; q++ )
+			quantiles[ q ] = ( q + 1 ) / 100.0;
+		return quantiles;
+	}
+}
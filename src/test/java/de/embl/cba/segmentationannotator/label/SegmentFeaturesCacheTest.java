@@ -0,0 +1,201 @@
+package de.embl.cba.segmentationannotator.label;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentFeaturesCacheTest
+{
+	private static final long CONTENT_HASH = 42;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File cacheDirectory;
+
+	@Before
+	public void saveCacheDirectory()
+	{
+		cacheDirectory = SegmentFeaturesCache.getCacheDirectory();
+	}
+
+	@After
+	public void restoreCacheDirectory()
+	{
+		SegmentFeaturesCache.setCacheDirectory( cacheDirectory );
+	}
+
+	@Test
+	public void readReturnsTheWrittenFeatures() throws IOException
+	{
+		final File file = new File( folder.getRoot(), "features" );
+		final Map< Integer, Map< Integer, SegmentFeatures > > written = createFeatures( 2, true );
+		SegmentFeaturesCache.write( file, CONTENT_HASH, 2, true, written );
+
+		final Map< Integer, Map< Integer, SegmentFeatures > > read = SegmentFeaturesCache.read( file, CONTENT_HASH, 2, true );
+
+		assertNotNull( read );
+		assertEquals( written.keySet(), read.keySet() );
+		for ( Integer frame : written.keySet() )
+		{
+			assertEquals( written.get( frame ).keySet(), read.get( frame ).keySet() );
+			for ( Integer label : written.get( frame ).keySet() )
+				assertFeaturesEqual( written.get( frame ).get( label ), read.get( frame ).get( label ) );
+		}
+	}
+
+	@Test
+	public void readIgnoresOtherContentAndMissingQuantiles() throws IOException
+	{
+		final File file = new File( folder.getRoot(), "features" );
+		SegmentFeaturesCache.write( file, CONTENT_HASH, 1, false, createFeatures( 1, false ) );
+
+		assertEquals( null, SegmentFeaturesCache.read( file, CONTENT_HASH + 1, 1, false ) );
+		assertEquals( null, SegmentFeaturesCache.read( file, CONTENT_HASH, 1, true ) );
+		assertNotNull( SegmentFeaturesCache.read( file, CONTENT_HASH, 1, false ) );
+	}
+
+	@Test
+	public void readOfTruncatedFileThrowsIOException() throws IOException
+	{
+		final File file = new File( folder.getRoot(), "features" );
+		SegmentFeaturesCache.write( file, CONTENT_HASH, 1, false, createFeatures( 1, false ) );
+		truncate( file, file.length() - 12 );
+
+		try
+		{
+			SegmentFeaturesCache.read( file, CONTENT_HASH, 1, false );
+			fail( "A truncated file must not be read" );
+		}
+		catch ( IOException e )
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void analyzeLabelsRecomputesCorruptCacheFile() throws IOException
+	{
+		SegmentFeaturesCache.setCacheDirectory( folder.newFolder( "cache" ) );
+		final ImagePlus labels = createLabelImage();
+		final ImagePlus[] intensities = new ImagePlus[ 0 ];
+
+		final Map< Integer, Map< Integer, SegmentFeatures > > features = SegmentFeaturesCache.analyzeLabels( labels, intensities );
+		final File cacheFile = SegmentFeaturesCache.getCacheFile( labels, intensities );
+		assertTrue( cacheFile.exists() );
+
+		truncate( cacheFile, 30 );
+		final Map< Integer, Map< Integer, SegmentFeatures > > recomputed = SegmentFeaturesCache.analyzeLabels( labels, intensities );
+
+		assertEquals( features.get( 0 ).keySet(), recomputed.get( 0 ).keySet() );
+		assertEquals( features.get( 0 ).get( 1 ).numPixels, recomputed.get( 0 ).get( 1 ).numPixels );
+		assertNotNull( SegmentFeaturesCache.read( cacheFile, SegmentFeaturesCache.contentHash( labels, intensities ), 0, false ) );
+	}
+
+	private static Map< Integer, Map< Integer, SegmentFeatures > > createFeatures( int numChannels, boolean hasQuantiles )
+	{
+		final Map< Integer, Map< Integer, SegmentFeatures > > frameToFeatures = new HashMap<>();
+		for ( int frame = 0; frame < 2; frame++ )
+		{
+			final Map< Integer, SegmentFeatures > labelToFeatures = new HashMap<>();
+			for ( int label = 1; label <= 5; label++ )
+			{
+				final SegmentFeatures f = new SegmentFeatures();
+				final double v = frame * 100 + label;
+				f.numPixels = ( int ) v * 10;
+				f.volume = v * 1.5;
+				f.anchorX = v + 0.1;
+				f.anchorY = v + 0.2;
+				f.anchorZ = v + 0.3;
+				f.bbMinX = v - 1;
+				f.bbMinY = v - 2;
+				f.bbMinZ = v - 3;
+				f.bbMaxX = v + 1;
+				f.bbMaxY = v + 2;
+				f.bbMaxZ = v + 3;
+				f.meanIntensity = new double[ numChannels ];
+				f.sumIntensity = new double[ numChannels ];
+				f.minIntensity = new double[ numChannels ];
+				f.maxIntensity = new double[ numChannels ];
+				f.varianceIntensity = new double[ numChannels ];
+				if ( hasQuantiles )
+				{
+					f.medianIntensity = new double[ numChannels ];
+					f.p95Intensity = new double[ numChannels ];
+				}
+				for ( int c = 0; c < numChannels; c++ )
+				{
+					f.meanIntensity[ c ] = v * ( c + 1 );
+					f.sumIntensity[ c ] = v * ( c + 2 );
+					f.minIntensity[ c ] = v * ( c + 3 );
+					f.maxIntensity[ c ] = v * ( c + 4 );
+					f.varianceIntensity[ c ] = v * ( c + 5 );
+					if ( ! hasQuantiles ) continue;
+					f.medianIntensity[ c ] = v * ( c + 6 );
+					f.p95Intensity[ c ] = v * ( c + 7 );
+				}
+				labelToFeatures.put( label, f );
+			}
+			frameToFeatures.put( frame, labelToFeatures );
+		}
+		return frameToFeatures;
+	}
+
+	private static void assertFeaturesEqual( SegmentFeatures expected, SegmentFeatures actual )
+	{
+		assertEquals( expected.numPixels, actual.numPixels );
+		assertEquals( expected.volume, actual.volume, 0 );
+		assertEquals( expected.anchorX, actual.anchorX, 0 );
+		assertEquals( expected.anchorY, actual.anchorY, 0 );
+		assertEquals( expected.anchorZ, actual.anchorZ, 0 );
+		assertEquals( expected.bbMinX, actual.bbMinX, 0 );
+		assertEquals( expected.bbMinY, actual.bbMinY, 0 );
+		assertEquals( expected.bbMinZ, actual.bbMinZ, 0 );
+		assertEquals( expected.bbMaxX, actual.bbMaxX, 0 );
+		assertEquals( expected.bbMaxY, actual.bbMaxY, 0 );
+		assertEquals( expected.bbMaxZ, actual.bbMaxZ, 0 );
+		for ( int c = 0; c < expected.meanIntensity.length; c++ )
+		{
+			assertEquals( expected.meanIntensity[ c ], actual.meanIntensity[ c ], 0 );
+			assertEquals( expected.sumIntensity[ c ], actual.sumIntensity[ c ], 0 );
+			assertEquals( expected.minIntensity[ c ], actual.minIntensity[ c ], 0 );
+			assertEquals( expected.maxIntensity[ c ], actual.maxIntensity[ c ], 0 );
+			assertEquals( expected.varianceIntensity[ c ], actual.varianceIntensity[ c ], 0 );
+			if ( expected.medianIntensity == null ) continue;
+			assertEquals( expected.medianIntensity[ c ], actual.medianIntensity[ c ], 0 );
+			assertEquals( expected.p95Intensity[ c ], actual.p95Intensity[ c ], 0 );
+		}
+	}
+
+	private static ImagePlus createLabelImage()
+	{
+		final ByteProcessor processor = new ByteProcessor( 16, 16 );
+		for ( int y = 0; y < 16; y++ )
+			for ( int x = 0; x < 16; x++ )
+				processor.set( x, y, x < 8 ? 1 : 2 );
+		return new ImagePlus( "labels", processor );
+	}
+
+	private static void truncate( File file, long length ) throws IOException
+	{
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" ) )
+		{
+			randomAccessFile.setLength( length );
+		}
+	}
+}